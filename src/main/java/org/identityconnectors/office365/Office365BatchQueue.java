@@ -0,0 +1,429 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONObject;
+
+/**
+ * Collects write operations and sends them to the Graph API as OData $batch requests.
+ * <p>
+ * A batch is sent once it holds batchSize operations, or batchFlushInterval
+ * after the first operation was queued, whichever comes first. Each operation
+ * goes in its own change set, so one failing does not roll back the others, and
+ * each sub-response is handed to the response handler of the blocking request
+ * it replaces, so callers see the same results and exceptions. A batch due to
+ * the flush interval is sent from the executor, as creating it may wait for a
+ * token, so the scheduler only keeps time.
+ * <p>
+ * Sub-responses get the same retry rules as single requests: a transient one
+ * puts its operation back in the queue once the Retry-After, or backoff, has
+ * passed, within the operation's retry budget. Any other failure becomes an
+ * {@link Office365Exception} without reaching the response handler.
+ */
+class Office365BatchQueue {
+
+    private static final Log log = Log.getLog(Office365BatchQueue.class);
+
+    /** Graph API limit on the number of change sets in one batch */
+    static final int MAX_BATCH_SIZE = 5;
+
+    private static final String CRLF = "\r\n";
+    private static final Pattern BOUNDARY_PATTERN = Pattern.compile(".*boundary=\"?([^\";]+)\"?.*", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Converts the sub-response of an operation into its result
+     */
+    interface ResponseHandler<T> {
+        T handle(HttpResponse response) throws IOException;
+    }
+
+    private final Office365Connection connection;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+
+    private List<Operation<?>> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    Office365BatchQueue(Office365Connection connection, ScheduledExecutorService scheduler, Executor executor, int batchSize, long flushIntervalMillis) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Queues an operation
+     *
+     * @param method HTTP method of the operation
+     * @param path Path of the operation, as passed to the blocking request methods
+     * @param body Body of the operation, null if there is none
+     * @return Completed with the handler's result once the batch holding the operation has been sent
+     */
+    <T> CompletableFuture<T> add(String method, String path, JSONObject body, ResponseHandler<T> handler) {
+        return add(method, path, body, this.connection.newRetryBudget(), handler);
+    }
+
+    /**
+     * @param budget Retry budget of the operation, spent on transient sub-responses
+     */
+    <T> CompletableFuture<T> add(String method, String path, JSONObject body, Office365RetryPolicy.Budget budget, ResponseHandler<T> handler) {
+        Operation<T> operation = new Operation<>(method, path, body, budget, handler);
+        enqueue(operation);
+        return operation.future;
+    }
+
+    private void enqueue(Operation<?> operation) {
+        List<Operation<?>> batch = null;
+
+        synchronized (this) {
+            this.pending.add(operation);
+            if (this.pending.size() >= this.batchSize) {
+                batch = take();
+            } else if (this.scheduledFlush == null) {
+                try {
+                    this.scheduledFlush = this.scheduler.schedule(this::flushOnExecutor, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    batch = take();
+                }
+            }
+        }
+
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends whatever is queued straight away
+     */
+    void flush() {
+        List<Operation<?>> batch;
+        synchronized (this) {
+            batch = take();
+        }
+        send(batch);
+    }
+
+    private void flushOnExecutor() {
+        try {
+            this.executor.execute(this::flush);
+        } catch (RejectedExecutionException ree) {
+            cancel();
+        }
+    }
+
+    /**
+     * Fails whatever is still queued, for use when the connection is disposed
+     */
+    void cancel() {
+        List<Operation<?>> batch;
+        synchronized (this) {
+            batch = take();
+        }
+        for (Operation<?> operation : batch) {
+            operation.future.completeExceptionally(new ConnectorException("Connection disposed before " + operation.method + " to " + operation.path + " was sent"));
+        }
+    }
+
+    private List<Operation<?>> take() {
+        if (this.scheduledFlush != null) {
+            this.scheduledFlush.cancel(false);
+            this.scheduledFlush = null;
+        }
+        List<Operation<?>> batch = this.pending;
+        this.pending = new ArrayList<>();
+        return batch;
+    }
+
+    private void send(final List<Operation<?>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        log.info("Sending batch of {0} operation(s)", batch.size());
+        final String path = "/$batch?api-version=" + Office365Connection.API_VERSION;
+
+        HttpPost post;
+        try {
+            post = createBatchPost(path, batch);
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+
+        this.connection.executeAsync(post, path).whenComplete((response, e) -> {
+            if (e != null) {
+                fail(batch, e);
+            } else {
+                dispatch(batch, response);
+            }
+        });
+    }
+
+    private HttpPost createBatchPost(String path, List<Operation<?>> batch) {
+        String boundary = "batch_" + UUID.randomUUID();
+        StringBuilder sb = new StringBuilder();
+        for (Operation<?> operation : batch) {
+            String changeset = "changeset_" + UUID.randomUUID();
+            sb.append("--").append(boundary).append(CRLF)
+                .append("Content-Type: multipart/mixed; boundary=").append(changeset).append(CRLF)
+                .append(CRLF)
+                .append("--").append(changeset).append(CRLF)
+                .append("Content-Type: application/http").append(CRLF)
+                .append("Content-Transfer-Encoding: binary").append(CRLF)
+                .append(CRLF)
+                .append(operation.method).append(' ').append(this.connection.getAPIEndPoint(operation.path)).append(" HTTP/1.1").append(CRLF)
+                .append("Content-Type: application/json;charset=utf-8;odata=verbose").append(CRLF)
+                .append("Accept: application/atom+xml").append(CRLF)
+                .append(CRLF);
+            if (operation.body != null) {
+                sb.append(operation.body.toString()).append(CRLF);
+            }
+            sb.append("--").append(changeset).append("--").append(CRLF);
+        }
+        sb.append("--").append(boundary).append("--").append(CRLF);
+
+        HttpPost post = new HttpPost(this.connection.getAPIEndPoint(path));
+        post.addHeader("Authorization", this.connection.getToken());
+        post.addHeader("DataServiceVersion", "3.0;NetFx");
+        post.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        post.addHeader("Accept", "multipart/mixed");
+
+        try {
+            StringEntity entity = new StringEntity(sb.toString(), "UTF-8");
+            entity.setContentType("multipart/mixed; boundary=" + boundary);
+            post.setEntity(entity);
+        } catch (UnsupportedEncodingException ex) {
+            throw new ConnectorException("Unsupported Encoding creating batch request", ex);
+        }
+        return post;
+    }
+
+    void dispatch(List<Operation<?>> batch, HttpResponse response) {
+        List<HttpResponse> responses;
+        try {
+            HttpEntity entity = response.getEntity();
+            String body = entity != null ? EntityUtils.toString(entity, Consts.UTF_8) : "";
+            if (response.getStatusLine().getStatusCode() != 202) {
+                log.error("An error occured sending a batch of {0} operation(s)", batch.size());
+                throw new ConnectorException("Batch request failed. Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + body);
+            }
+
+            Header contentType = response.getFirstHeader("Content-Type");
+            String boundary = contentType != null ? getBoundary(contentType.getValue()) : null;
+            if (boundary == null) {
+                throw new ConnectorException("No boundary in batch response content type " + contentType);
+            }
+            responses = parseResponses(body, boundary);
+        } catch (IOException | RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+
+        if (responses.size() != batch.size()) {
+            log.error("Batch of {0} operation(s) returned {1} response(s)", batch.size(), responses.size());
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Operation<?> operation = batch.get(i);
+            if (i < responses.size()) {
+                complete(operation, responses.get(i));
+            } else {
+                operation.future.completeExceptionally(new ConnectorException("No response in batch for " + operation.method + " to " + operation.path));
+            }
+        }
+    }
+
+    private void complete(final Operation<?> operation, HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (Office365RetryPolicy.isTransient(statusCode)) {
+            long delay = operation.budget.nextDelay(response.getFirstHeader("Retry-After"));
+            if (delay >= 0) {
+                log.info("Received {0} in batch for {1} to {2}, retry {3} in {4} ms", statusCode, operation.method, operation.path, operation.budget.getRetries(), delay);
+                try {
+                    this.scheduler.schedule(() -> enqueue(operation), delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    operation.future.completeExceptionally(new ConnectorException("Connection disposed whilst waiting to retry " + operation.method + " to " + operation.path, ree));
+                }
+                return;
+            }
+            log.error("Retry budget exhausted for {0} to {1} after {2} retries", operation.method, operation.path, operation.budget.getRetries());
+        }
+
+        if (statusCode < 200 || statusCode >= 300) {
+            String error;
+            try {
+                HttpEntity entity = response.getEntity();
+                error = entity != null ? EntityUtils.toString(entity, Consts.UTF_8) : "";
+            } catch (IOException ioe) {
+                error = "";
+            }
+            log.error("Error in batch for {0} to {1}. Error code: {2} Received the following response: {3}", operation.method, operation.path, statusCode, error);
+            operation.future.completeExceptionally(new Office365Exception(statusCode, error));
+            return;
+        }
+
+        operation.complete(response);
+    }
+
+    private void fail(List<Operation<?>> batch, Throwable e) {
+        log.error(e, "Error sending batch of {0} operation(s)", batch.size());
+        for (Operation<?> operation : batch) {
+            operation.future.completeExceptionally(e);
+        }
+    }
+
+    static String getBoundary(String contentType) {
+        Matcher m = BOUNDARY_PATTERN.matcher(contentType);
+        return m.matches() ? m.group(1) : null;
+    }
+
+    /**
+     * Parses a multipart/mixed batch response, change sets included
+     *
+     * @return The sub-responses in the order they appear
+     */
+    static List<HttpResponse> parseResponses(String body, String boundary) throws IOException {
+        List<HttpResponse> responses = new ArrayList<>();
+        String delimiter = "--" + boundary;
+        String[] parts = body.replace(CRLF, "\n").split(Pattern.quote(delimiter), -1);
+
+        // The first part is the preamble, the part following the closing delimiter is the epilogue
+        for (int i = 1; i < parts.length && !parts[i].startsWith("--"); i++) {
+            String part = parts[i];
+            int headersEnd = part.indexOf("\n\n");
+            if (headersEnd < 0) {
+                throw new IOException("No headers in batch response part " + i);
+            }
+
+            String contentType = getHeader(part.substring(0, headersEnd), "Content-Type");
+            String content = part.substring(headersEnd + 2);
+            if (contentType != null && contentType.toLowerCase().startsWith("multipart/mixed")) {
+                String changesetBoundary = getBoundary(contentType);
+                if (changesetBoundary == null) {
+                    throw new IOException("No boundary in change set content type " + contentType);
+                }
+                responses.addAll(parseResponses(content, changesetBoundary));
+            } else if (contentType != null && contentType.toLowerCase().startsWith("application/http")) {
+                responses.add(parseHttpResponse(content));
+            } else {
+                throw new IOException("Unexpected content type " + contentType + " in batch response");
+            }
+        }
+        return responses;
+    }
+
+    private static HttpResponse parseHttpResponse(String content) throws IOException {
+        int headersEnd = content.indexOf("\n\n");
+        String head = headersEnd < 0 ? content : content.substring(0, headersEnd);
+        String body = headersEnd < 0 ? "" : content.substring(headersEnd + 2).trim();
+
+        String[] lines = head.trim().split("\n");
+        // HTTP/1.1 201 Created
+        String[] statusLine = lines[0].trim().split(" ", 3);
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid status line in batch response: " + lines[0]);
+        }
+
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, statusLine.length > 2 ? statusLine[2] : ""));
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                response.addHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        if (!body.isEmpty()) {
+            response.setEntity(new StringEntity(body, ContentType.create("application/json", Consts.UTF_8)));
+        }
+        return response;
+    }
+
+    private static String getHeader(String headers, String name) {
+        for (String line : headers.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    static class Operation<T> {
+        private final String method;
+        private final String path;
+        private final JSONObject body;
+        private final Office365RetryPolicy.Budget budget;
+        private final ResponseHandler<T> handler;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Operation(String method, String path, JSONObject body, Office365RetryPolicy.Budget budget, ResponseHandler<T> handler) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.budget = budget;
+            this.handler = handler;
+        }
+
+        private void complete(HttpResponse response) {
+            try {
+                this.future.complete(this.handler.handle(response));
+            } catch (IOException | RuntimeException e) {
+                this.future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Assigns licenses to many users at once, e.g. a whole department.
+ * <p>
+ * The licenses are resolved once against the license catalog. The licenses
+ * each user already has are then read, from the user cache where possible, to
+ * work out the single diffed assignLicense request the user needs, if any. The
+ * tenancy is checked to have enough units left of each SKU those requests add,
+ * before any is sent, so assigning again licenses users already have needs no
+ * spare units. The requests are sent through $batch. Both the reads and the
+ * requests run with at most the configured number of users in flight.
+ */
+public class Office365BulkLicenseAssignment {
+
+    private static final Log log = Log.getLog(Office365BulkLicenseAssignment.class);
+
+    /**
+     * Told of the progress of a bulk assignment, from any thread but never concurrently
+     */
+    public interface ProgressListener {
+        void progress(int completed, int failed, int total);
+    }
+
+    /**
+     * Outcome of a bulk assignment per user
+     */
+    public static final class Result {
+        private final List<Uid> succeeded;
+        private final Map<Uid, Throwable> failed;
+
+        private Result(List<Uid> succeeded, Map<Uid, Throwable> failed) {
+            this.succeeded = Collections.unmodifiableList(succeeded);
+            this.failed = Collections.unmodifiableMap(failed);
+        }
+
+        /**
+         * @return The users which have their licenses, whether or not a request was needed
+         */
+        public List<Uid> getSucceeded() {
+            return this.succeeded;
+        }
+
+        /**
+         * @return The error of each user whose licenses could not be assigned
+         */
+        public Map<Uid, Throwable> getFailed() {
+            return this.failed;
+        }
+    }
+
+    /**
+     * What a bulk assignment needs of the tenancy
+     */
+    interface Tenancy {
+        Office365LicenseCatalog getLicenseCatalog();
+
+        Office365UserCache getUserCache();
+
+        /**
+         * @param license In LICENSE:PLAN:PLAN format
+         * @return The license with its skuId and disabledPlans
+         */
+        JSONObject parseLicense(String license) throws JSONException;
+
+        /**
+         * @return Completed with the assignedLicenses of a user missing from the user cache
+         */
+        CompletableFuture<JSONArray> readAssignedLicenses(Uid uid);
+
+        CompletableFuture<Void> sendAssignment(Uid uid, JSONObject request);
+    }
+
+    private final Tenancy tenancy;
+    private final int parallelism;
+
+    Office365BulkLicenseAssignment(final Office365UserOps userOps, final Office365Connection connection, int parallelism) {
+        this(new Tenancy() {
+            @Override
+            public Office365LicenseCatalog getLicenseCatalog() {
+                return connection.getLicenseCatalog();
+            }
+
+            @Override
+            public Office365UserCache getUserCache() {
+                return connection.getUserCache();
+            }
+
+            @Override
+            public JSONObject parseLicense(String license) throws JSONException {
+                return userOps.convertLicenseToOfficeFormat(license);
+            }
+
+            @Override
+            public CompletableFuture<JSONArray> readAssignedLicenses(Uid uid) {
+                return userOps.getAssignedLicensesAsync(uid, connection.newRetryBudget());
+            }
+
+            @Override
+            public CompletableFuture<Void> sendAssignment(Uid uid, JSONObject request) {
+                return connection.licenseAssignmentRequestBatched(uid, request);
+            }
+        }, parallelism);
+    }
+
+    Office365BulkLicenseAssignment(Tenancy tenancy, int parallelism) {
+        this.tenancy = tenancy;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param assignments The licenses, in LICENSE:PLAN:PLAN format, to assign to each user
+     * @param listener Told after each user, may be null
+     * @throws ConnectorException if a license is unknown or the tenancy hasn't enough units left
+     *         for the users which don't have them yet
+     */
+    Result assign(Map<Uid, List<String>> assignments, ProgressListener listener) {
+        log.info("Bulk assigning licenses to {0} user(s) with parallelism {1}", assignments.size(), this.parallelism);
+
+        Map<Uid, List<JSONObject>> parsed = parse(assignments);
+        final Progress progress = new Progress(parsed.size(), listener);
+
+        // The request each user needs, and the SKUs it adds which the user doesn't have yet
+        final Map<Uid, JSONObject> requests = new LinkedHashMap<>();
+        final Map<String, Integer> needed = new HashMap<>(); // skuId -> users
+        final Office365UserCache cache = this.tenancy.getUserCache();
+        forEachBounded(parsed.entrySet(), entry -> {
+            final Uid uid = entry.getKey();
+            JSONArray cached = cache.getAssignedLicenses(uid.getUidValue());
+            CompletableFuture<JSONArray> assigned = cached != null ? CompletableFuture.completedFuture(cached)
+                    : this.tenancy.readAssignedLicenses(uid);
+            return assigned.thenAccept(licenses -> {
+                try {
+                    JSONObject request = Office365LicenseDiff.diff(licenses, entry.getValue(), Collections.<String>emptyList());
+                    if (request == null) {
+                        log.info("User {0} already has the license(s) as requested", uid.getUidValue());
+                        progress.succeeded(uid);
+                        return;
+                    }
+                    List<String> added = getAddedSkus(licenses, request);
+                    synchronized (requests) {
+                        requests.put(uid, request);
+                        for (String skuId : added) {
+                            Integer count = needed.get(skuId);
+                            needed.put(skuId, count == null ? 1 : count + 1);
+                        }
+                    }
+                } catch (JSONException je) {
+                    throw new ConnectorException("Error reading existing license(s) of " + uid.getUidValue(), je);
+                }
+            }).whenComplete((v, e) -> {
+                if (e != null) {
+                    progress.failed(uid, e);
+                }
+            });
+        });
+
+        checkCapacity(needed);
+
+        forEachBounded(requests.entrySet(), entry -> {
+            final Uid uid = entry.getKey();
+            CompletableFuture<Void> sent;
+            try {
+                sent = this.tenancy.sendAssignment(uid, entry.getValue());
+            } catch (RuntimeException e) {
+                sent = new CompletableFuture<>();
+                sent.completeExceptionally(e);
+            }
+            return sent.whenComplete((v, e) -> {
+                if (e != null) {
+                    progress.failed(uid, e);
+                } else {
+                    progress.succeeded(uid);
+                }
+            });
+        });
+
+        return progress.getResult();
+    }
+
+    /**
+     * Runs the task for each item with at most parallelism in flight, returning once all have
+     * completed. A task's failure is for the task itself to record.
+     */
+    private <T> void forEachBounded(Collection<T> items, Function<T, CompletableFuture<Void>> task) {
+        final Semaphore permits = new Semaphore(this.parallelism);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        try {
+            for (T item : items) {
+                permits.acquire();
+                CompletableFuture<Void> done;
+                try {
+                    done = task.apply(item);
+                } catch (RuntimeException e) {
+                    done = new CompletableFuture<>();
+                    done.completeExceptionally(e);
+                }
+                pending.add(done.handle((v, e) -> {
+                    permits.release();
+                    return null;
+                }));
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted whilst assigning licenses", ie);
+        }
+    }
+
+    /**
+     * Resolves each distinct license string once
+     */
+    private Map<Uid, List<JSONObject>> parse(Map<Uid, List<String>> assignments) {
+        Map<String, JSONObject> resolved = new HashMap<>();
+        Map<Uid, List<JSONObject>> parsed = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Uid, List<String>> entry : assignments.entrySet()) {
+                List<JSONObject> licenses = new ArrayList<>();
+                for (String license : entry.getValue()) {
+                    JSONObject json = resolved.get(license);
+                    if (json == null) {
+                        json = this.tenancy.parseLicense(license);
+                        resolved.put(license, json);
+                    }
+                    licenses.add(json);
+                }
+                parsed.put(entry.getKey(), licenses);
+            }
+        } catch (JSONException je) {
+            log.error(je, "Error parsing licenses");
+            throw new ConnectorException("Error parsing licenses", je);
+        }
+        return parsed;
+    }
+
+    /**
+     * Fails if a SKU has fewer units left than the users it is about to be added to
+     *
+     * @param needed skuId -> number of users the SKU is added to
+     */
+    private void checkCapacity(Map<String, Integer> needed) {
+        Office365LicenseCatalog catalog = this.tenancy.getLicenseCatalog();
+        List<String> shortfalls = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : needed.entrySet()) {
+            Office365License license = catalog.getLicenseBySku(entry.getKey());
+            if (license == null) {
+                continue;
+            }
+            int available = license.getPrepaidUnitsEnabled() - license.getConsumedUnits();
+            if (entry.getValue() > available) {
+                shortfalls.add(license.getSkuPartNumber() + " (" + entry.getValue() + " needed, " + available + " available)");
+            }
+        }
+        if (!shortfalls.isEmpty()) {
+            log.error("Not enough licenses left for bulk assignment: {0}", shortfalls);
+            throw new ConnectorException("Not enough licenses left: " + String.join(", ", shortfalls));
+        }
+    }
+
+    /**
+     * @return The SKUs of the request's addLicenses the user doesn't have yet, changing
+     *         the plans of a license already assigned uses no further unit
+     */
+    static List<String> getAddedSkus(JSONArray assigned, JSONObject request) throws JSONException {
+        List<String> added = new ArrayList<>();
+        JSONArray addLicenses = request.optJSONArray("addLicenses");
+        if (addLicenses != null) {
+            for (int i = 0; i < addLicenses.length(); i++) {
+                String skuId = addLicenses.getJSONObject(i).getString("skuId");
+                if (!hasSku(assigned, skuId)) {
+                    added.add(skuId);
+                }
+            }
+        }
+        return added;
+    }
+
+    private static boolean hasSku(JSONArray assigned, String skuId) throws JSONException {
+        if (assigned != null) {
+            for (int i = 0; i < assigned.length(); i++) {
+                if (skuId.equalsIgnoreCase(assigned.getJSONObject(i).getString("skuId"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Outcome of each user so far, reported to the listener as it changes
+     */
+    private static final class Progress {
+        private final int total;
+        private final ProgressListener listener;
+        private final List<Uid> succeeded = new ArrayList<>();
+        private final Map<Uid, Throwable> failed = new LinkedHashMap<>();
+
+        Progress(int total, ProgressListener listener) {
+            this.total = total;
+            this.listener = listener;
+        }
+
+        synchronized void succeeded(Uid uid) {
+            this.succeeded.add(uid);
+            report();
+        }
+
+        synchronized void failed(Uid uid, Throwable e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.error(cause, "Error assigning licenses to {0}", uid.getUidValue());
+            this.failed.put(uid, cause);
+            report();
+        }
+
+        private void report() {
+            if (this.listener != null) {
+                this.listener.progress(this.succeeded.size() + this.failed.size(), this.failed.size(), this.total);
+            }
+        }
+
+        synchronized Result getResult() {
+            log.info("Bulk assigned licenses to {0} user(s), {1} failed", this.succeeded.size(), this.failed.size());
+            return new Result(new ArrayList<>(this.succeeded), new LinkedHashMap<>(this.failed));
+        }
+    }
+}
@@ -55,6 +55,24 @@ public class Office365Configuration extends AbstractConfiguration {
     private String immutableIDEncodeMechanism = ENCODE_STRAIGHT_BASE64_STR;
     private String ignoredPlanNames = null;
     private Integer cacheRefreshInterval = 5;
+    private Integer maxConnectionsPerRoute = 20;
+    private Integer maxConnectionsTotal = 50;
+    private Integer keepAliveTimeout = 30; // seconds, used when the server doesn't send a Keep-Alive header
+    private Integer idleConnectionTimeout = 60; // seconds
+    private Integer pageSize = 100;
+    private Integer maxRetries = 3;
+    private Integer retryBudget = 60; // seconds an operation may spend waiting to retry
+    private Integer batchSize = Office365BatchQueue.MAX_BATCH_SIZE;
+    private Integer batchFlushInterval = 100; // milliseconds
+    private Integer scanParallelism = 1;
+    private Integer domainCacheTimeout = 60; // minutes
+    private Integer domainNegativeCacheTimeout = 60; // seconds
+    private Integer userCacheSize = 1000;
+    private Integer userCacheTimeout = 60; // seconds
+    private String snapshotDirectory = null;
+    private Integer warmUpTimeout = 30; // seconds
+    private Integer bulkParallelism = 10;
+    private Integer writeCoalescingWindow = 0; // milliseconds
 
     /**
      * Constructor
@@ -201,6 +219,78 @@ public class Office365Configuration extends AbstractConfiguration {
         if (StringUtil.isBlank(immutableIDEncodeMechanism)) {
             throw new IllegalArgumentException("ACS Principal ID cannot be null or empty.");
         }
+
+        if (maxConnectionsPerRoute == null || maxConnectionsPerRoute < 1) {
+            throw new IllegalArgumentException("Max connections per route must be greater than zero.");
+        }
+
+        if (maxConnectionsTotal == null || maxConnectionsTotal < maxConnectionsPerRoute) {
+            throw new IllegalArgumentException("Max connections total must be greater than or equal to max connections per route.");
+        }
+
+        if (cacheRefreshInterval == null || cacheRefreshInterval < 0) {
+            throw new IllegalArgumentException("Cache refresh interval cannot be negative.");
+        }
+
+        if (keepAliveTimeout == null || keepAliveTimeout < 1) {
+            throw new IllegalArgumentException("Keep alive timeout must be greater than zero.");
+        }
+
+        if (idleConnectionTimeout == null || idleConnectionTimeout < 1) {
+            throw new IllegalArgumentException("Idle connection timeout must be greater than zero.");
+        }
+
+        if (pageSize == null || pageSize < 1 || pageSize > Office365Connection.MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + Office365Connection.MAX_PAGE_SIZE + ".");
+        }
+
+        if (maxRetries == null || maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries cannot be negative.");
+        }
+
+        if (retryBudget == null || retryBudget < 0) {
+            throw new IllegalArgumentException("Retry budget cannot be negative.");
+        }
+
+        if (batchSize == null || batchSize < 1 || batchSize > Office365BatchQueue.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + Office365BatchQueue.MAX_BATCH_SIZE + ".");
+        }
+
+        if (batchFlushInterval == null || batchFlushInterval < 0) {
+            throw new IllegalArgumentException("Batch flush interval cannot be negative.");
+        }
+
+        if (scanParallelism == null || scanParallelism < 1) {
+            throw new IllegalArgumentException("Scan parallelism must be greater than zero.");
+        }
+
+        if (domainCacheTimeout == null || domainCacheTimeout < 0) {
+            throw new IllegalArgumentException("Domain cache timeout cannot be negative.");
+        }
+
+        if (domainNegativeCacheTimeout == null || domainNegativeCacheTimeout < 0) {
+            throw new IllegalArgumentException("Domain negative cache timeout cannot be negative.");
+        }
+
+        if (userCacheSize == null || userCacheSize < 0) {
+            throw new IllegalArgumentException("User cache size cannot be negative.");
+        }
+
+        if (userCacheTimeout == null || userCacheTimeout < 0) {
+            throw new IllegalArgumentException("User cache timeout cannot be negative.");
+        }
+
+        if (warmUpTimeout == null || warmUpTimeout < 0) {
+            throw new IllegalArgumentException("Warm-up timeout cannot be negative.");
+        }
+
+        if (bulkParallelism == null || bulkParallelism < 1) {
+            throw new IllegalArgumentException("Bulk parallelism must be greater than zero.");
+        }
+
+        if (writeCoalescingWindow == null || writeCoalescingWindow < 0) {
+            throw new IllegalArgumentException("Write coalescing window cannot be negative.");
+        }
     }
 
     @ConfigurationProperty(order = 10, displayMessageKey = "cacheRefreshInterval.display", confidential = false)
@@ -212,4 +302,202 @@ public class Office365Configuration extends AbstractConfiguration {
 		this.cacheRefreshInterval = cacheRefreshInterval;
 	}
 
+    @ConfigurationProperty(order = 11, displayMessageKey = "maxConnectionsPerRoute.display",
+            groupMessageKey ="basic.group", helpMessageKey = "maxConnectionsPerRoute.help",
+            confidential = false)
+    public Integer getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    @ConfigurationProperty(order = 12, displayMessageKey = "maxConnectionsTotal.display",
+            groupMessageKey ="basic.group", helpMessageKey = "maxConnectionsTotal.help",
+            confidential = false)
+    public Integer getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    public void setMaxConnectionsTotal(Integer maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    @ConfigurationProperty(order = 13, displayMessageKey = "keepAliveTimeout.display",
+            groupMessageKey ="basic.group", helpMessageKey = "keepAliveTimeout.help",
+            confidential = false)
+    public Integer getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public void setKeepAliveTimeout(Integer keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    @ConfigurationProperty(order = 14, displayMessageKey = "idleConnectionTimeout.display",
+            groupMessageKey ="basic.group", helpMessageKey = "idleConnectionTimeout.help",
+            confidential = false)
+    public Integer getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionTimeout(Integer idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    @ConfigurationProperty(order = 15, displayMessageKey = "pageSize.display",
+            groupMessageKey ="basic.group", helpMessageKey = "pageSize.help",
+            confidential = false)
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @ConfigurationProperty(order = 16, displayMessageKey = "maxRetries.display",
+            groupMessageKey ="basic.group", helpMessageKey = "maxRetries.help",
+            confidential = false)
+    public Integer getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(Integer maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @ConfigurationProperty(order = 17, displayMessageKey = "retryBudget.display",
+            groupMessageKey ="basic.group", helpMessageKey = "retryBudget.help",
+            confidential = false)
+    public Integer getRetryBudget() {
+        return retryBudget;
+    }
+
+    public void setRetryBudget(Integer retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    @ConfigurationProperty(order = 18, displayMessageKey = "batchSize.display",
+            groupMessageKey ="basic.group", helpMessageKey = "batchSize.help",
+            confidential = false)
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @ConfigurationProperty(order = 19, displayMessageKey = "batchFlushInterval.display",
+            groupMessageKey ="basic.group", helpMessageKey = "batchFlushInterval.help",
+            confidential = false)
+    public Integer getBatchFlushInterval() {
+        return batchFlushInterval;
+    }
+
+    public void setBatchFlushInterval(Integer batchFlushInterval) {
+        this.batchFlushInterval = batchFlushInterval;
+    }
+
+    @ConfigurationProperty(order = 20, displayMessageKey = "scanParallelism.display",
+            groupMessageKey ="basic.group", helpMessageKey = "scanParallelism.help",
+            confidential = false)
+    public Integer getScanParallelism() {
+        return scanParallelism;
+    }
+
+    public void setScanParallelism(Integer scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    @ConfigurationProperty(order = 21, displayMessageKey = "domainCacheTimeout.display",
+            groupMessageKey ="basic.group", helpMessageKey = "domainCacheTimeout.help",
+            confidential = false)
+    public Integer getDomainCacheTimeout() {
+        return domainCacheTimeout;
+    }
+
+    public void setDomainCacheTimeout(Integer domainCacheTimeout) {
+        this.domainCacheTimeout = domainCacheTimeout;
+    }
+
+    @ConfigurationProperty(order = 22, displayMessageKey = "domainNegativeCacheTimeout.display",
+            groupMessageKey ="basic.group", helpMessageKey = "domainNegativeCacheTimeout.help",
+            confidential = false)
+    public Integer getDomainNegativeCacheTimeout() {
+        return domainNegativeCacheTimeout;
+    }
+
+    public void setDomainNegativeCacheTimeout(Integer domainNegativeCacheTimeout) {
+        this.domainNegativeCacheTimeout = domainNegativeCacheTimeout;
+    }
+
+    @ConfigurationProperty(order = 23, displayMessageKey = "userCacheSize.display",
+            groupMessageKey ="basic.group", helpMessageKey = "userCacheSize.help",
+            confidential = false)
+    public Integer getUserCacheSize() {
+        return userCacheSize;
+    }
+
+    public void setUserCacheSize(Integer userCacheSize) {
+        this.userCacheSize = userCacheSize;
+    }
+
+    @ConfigurationProperty(order = 24, displayMessageKey = "userCacheTimeout.display",
+            groupMessageKey ="basic.group", helpMessageKey = "userCacheTimeout.help",
+            confidential = false)
+    public Integer getUserCacheTimeout() {
+        return userCacheTimeout;
+    }
+
+    public void setUserCacheTimeout(Integer userCacheTimeout) {
+        this.userCacheTimeout = userCacheTimeout;
+    }
+
+    @ConfigurationProperty(order = 25, displayMessageKey = "snapshotDirectory.display",
+            groupMessageKey ="basic.group", helpMessageKey = "snapshotDirectory.help",
+            confidential = false)
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    @ConfigurationProperty(order = 26, displayMessageKey = "warmUpTimeout.display",
+            groupMessageKey ="basic.group", helpMessageKey = "warmUpTimeout.help",
+            confidential = false)
+    public Integer getWarmUpTimeout() {
+        return warmUpTimeout;
+    }
+
+    public void setWarmUpTimeout(Integer warmUpTimeout) {
+        this.warmUpTimeout = warmUpTimeout;
+    }
+
+    @ConfigurationProperty(order = 27, displayMessageKey = "bulkParallelism.display",
+            groupMessageKey ="basic.group", helpMessageKey = "bulkParallelism.help",
+            confidential = false)
+    public Integer getBulkParallelism() {
+        return bulkParallelism;
+    }
+
+    public void setBulkParallelism(Integer bulkParallelism) {
+        this.bulkParallelism = bulkParallelism;
+    }
+
+    @ConfigurationProperty(order = 28, displayMessageKey = "writeCoalescingWindow.display",
+            groupMessageKey ="basic.group", helpMessageKey = "writeCoalescingWindow.help",
+            confidential = false)
+    public Integer getWriteCoalescingWindow() {
+        return writeCoalescingWindow;
+    }
+
+    public void setWriteCoalescingWindow(Integer writeCoalescingWindow) {
+        this.writeCoalescingWindow = writeCoalescingWindow;
+    }
+
 }
@@ -23,35 +23,59 @@
  */
 package org.identityconnectors.office365;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.apache.http.Consts;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.office365.domain.Office365Domain;
-import org.identityconnectors.office365.domain.Office365FederatedDomain;
-import org.identityconnectors.office365.domain.Office365ManagedDomain;
 import org.identityconnectors.office365.jsontoken.JWTTokenHelper;
 import org.identityconnectors.office365.jsontoken.JsonWebToken;
 import org.json.JSONArray;
@@ -68,26 +92,144 @@ public class Office365Connection {
 
     static Log log = Log.getLog(Office365Connection.class);
     private Office365Configuration configuration;
-    private String token = null; // TODO Handle expiring tokens
+    private final Office365TokenManager tokenManager;
+    private final Office365RetryPolicy retryPolicy;
     public static final String API_VERSION = "2013-11-08";
     public static final Uid SUCCESS_UID = new Uid("fffffff-ffff-ffff-ffff-ffffffffffff");
     private Pattern directoryObjectGUIDPattern = Pattern.compile(".*directoryObjects/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})/.*");
-    private static Map<String, String> licensesBySkuId = new HashMap<>();		// Hashmap of license sku -> license name
-    private static Map<String, String> servicePlanIDs = new HashMap<>(); 		// Hashmap of servicePlanName -> servicePlanId
-    private static Map<String, Office365License> licenses = new HashMap<>(); 	// Hashmap of license name --> license object 
+    private static final Pattern SKIP_TOKEN_PATTERN = Pattern.compile(".*[?&]\\$skiptoken=([^&]+).*");
+    private static final Pattern DELTA_TOKEN_PATTERN = Pattern.compile(".*[?&]deltaLink=([^&]+).*");
+    public static final int MAX_PAGE_SIZE = 999; // Largest $top accepted by the Graph API
+    // License catalog of each tenancy, shared by all connections to the tenancy
+    private static final ConcurrentMap<String, AtomicReference<Office365LicenseCatalog>> licenseCatalogs = new ConcurrentHashMap<>();
+    private final AtomicReference<Office365LicenseCatalog> licenseCatalog;
+    // Whether a background refresh of the tenancy's license catalog is in flight, so only one connection sends it
+    private static final ConcurrentMap<String, AtomicBoolean> licenseCatalogRefreshes = new ConcurrentHashMap<>();
+    private final AtomicBoolean licenseCatalogRefreshing;
+    private static final String SUBSCRIBED_SKUS_PATH = "/subscribedSkus?api-version=" + API_VERSION;
+    private static final long MIN_CATALOG_REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(30);
     
-    private static long lastRefreshTimestamp = 0;
     
-    private Map<String, Office365Domain> verifiedDomains = null;
+    private final Office365DomainCache domainCache;
+    private final Office365UserCache userCache;
+    private final Office365Snapshot snapshot;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ConnectionKeepAliveStrategy keepAliveStrategy;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService worker;
+    private CloseableHttpAsyncClient asyncClient = null;
+    private final Office365BatchQueue batchQueue;
+    private final Office365WriteCoalescer writeCoalescer; // shared per tenancy, null when coalescing is disabled
+    private final Office365WriteCoalescer.Sender coalescedSender = this::patchObjectAsync;
+    private volatile boolean disposed = false;
+    private Office365WarmUp warmUp = null;
     
     public static Office365Connection createConnection(Office365Configuration configuration) {
-        String token = createToken(configuration);
-        return new Office365Connection(configuration, token);
+        Office365Connection connection = new Office365Connection(configuration);
+        connection.getToken();
+        return connection;
     }
 
-    private Office365Connection(Office365Configuration configuration, String token) {
+    /**
+     * Creates a connection which loads its token, license catalog and verified domains
+     * in the background, for at most warmUpTimeout seconds
+     */
+    public static Office365Connection createWarmingConnection(Office365Configuration configuration) {
+        Office365Connection connection = new Office365Connection(configuration);
+        connection.warmUp();
+        return connection;
+    }
+
+    private Office365Connection(Office365Configuration configuration) {
         this.configuration = configuration;
-        this.token = token;
+        this.domainCache = Office365DomainCache.forTenancy(configuration.getTenancy());
+        this.snapshot = StringUtil.isBlank(configuration.getSnapshotDirectory()) ? null
+                : Office365Snapshot.forTenancy(configuration.getSnapshotDirectory(), configuration.getTenancy());
+        this.userCache = new Office365UserCache(configuration.getUserCacheSize(), TimeUnit.SECONDS.toMillis(configuration.getUserCacheTimeout()));
+        this.licenseCatalog = licenseCatalogs.computeIfAbsent(configuration.getTenancy(),
+                tenancy -> new AtomicReference<>(Office365LicenseCatalog.EMPTY));
+        this.licenseCatalogRefreshing = licenseCatalogRefreshes.computeIfAbsent(configuration.getTenancy(),
+                tenancy -> new AtomicBoolean(false));
+        this.tokenManager = new Office365TokenManager(configuration);
+        this.retryPolicy = new Office365RetryPolicy(configuration.getMaxRetries(), TimeUnit.SECONDS.toMillis(configuration.getRetryBudget()));
+
+        // One pooled client per connection so requests reuse the TCP/TLS session to the Graph endpoint
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(configuration.getMaxConnectionsTotal());
+        this.connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+
+        final long keepAliveMillis = TimeUnit.SECONDS.toMillis(configuration.getKeepAliveTimeout());
+        this.keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // Honour a Keep-Alive header if the server sends one, otherwise use the configured value
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAliveMillis;
+            }
+        };
+
+        this.httpClient = HttpClientBuilder.create()
+                .setConnectionManager(this.connectionManager)
+                .setKeepAliveStrategy(this.keepAliveStrategy)
+                .build();
+
+        final int idleTimeout = configuration.getIdleConnectionTimeout();
+        // Evicts idle connections and schedules the retries of non blocking requests
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "office365-connection-scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Runs the background work which blocks, e.g. on a token or a file, so the scheduler only keeps time
+        this.worker = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "office365-connection-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+
+        // Reload the license catalog ahead of it going stale, so searches never wait for it
+        final long catalogRefreshMillis = Math.max(TimeUnit.MINUTES.toMillis(configuration.getCacheRefreshInterval()) * 3 / 4, MIN_CATALOG_REFRESH_MILLIS);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Office365LicenseCatalog catalog = licenseCatalog.get();
+                    // Not loaded yet, or already reloaded by another connection to the tenancy
+                    if (!catalog.isEmpty() && System.currentTimeMillis() - catalog.getLoadedAt() >= catalogRefreshMillis) {
+                        // Creating the request may wait for a new token
+                        worker.execute(Office365Connection.this::refreshLicenseCatalog);
+                    }
+                } catch (RuntimeException e) {
+                    log.error(e, "Error scheduling license catalog refresh");
+                }
+            }
+        }, catalogRefreshMillis, catalogRefreshMillis, TimeUnit.MILLISECONDS);
+
+        this.batchQueue = new Office365BatchQueue(this, this.scheduler, this.worker, configuration.getBatchSize(), configuration.getBatchFlushInterval());
+        this.writeCoalescer = configuration.getWriteCoalescingWindow() > 0
+                ? Office365WriteCoalescer.forTenancy(configuration.getTenancy()) : null;
+
+        if (this.snapshot != null) {
+            warmStart();
+        }
+
         log.ok("New Office365Connection for tenancy {0}", configuration.getTenancy());
     }
 
@@ -101,7 +243,7 @@ public class Office365Connection {
                     (new URI(configuration.getAuthURL())).getHost(),
                     configuration.getAcsPrincipalID(),
                     JWTTokenHelper.getCurrentDateTime(),
-                    60 * 60);
+                    Office365TokenManager.TOKEN_VALIDITY_SECONDS);
 
             final String[] clearText = new String[1];
             GuardedString.Accessor accessor = new GuardedString.Accessor() {
@@ -128,33 +270,90 @@ public class Office365Connection {
         return null;
     }
 
-    private String getToken() {
+    String getToken() {
         log.info("getToken called");
-        if (this.token == null) {
-            log.info("No currently valid token attempting to retrieve");
-            int count = 0;
-            while (count < Office365Configuration.MAX_RECONNECT_ATTEMPTS) {
-                this.token = createToken(this.configuration);
-                if (this.token != null) {
-                    break;
-                } else {
-                    log.info("Failed to get token, attempting againt, request {0} of {1}", count, Office365Configuration.MAX_RECONNECT_ATTEMPTS);
+        return this.tokenManager.getToken();
+    }
+
+    private void invalidateToken() {
+        this.tokenManager.invalidate();
+    }
+
+    /**
+     * @return A retry budget for one connector operation, to be shared by every request it makes
+     */
+    public Office365RetryPolicy.Budget newRetryBudget() {
+        return this.retryPolicy.newBudget();
+    }
+
+    private HttpResponse execute(HttpRequestBase request, String path) throws IOException {
+        return execute(request, path, newRetryBudget());
+    }
+
+    /**
+     * Executes the request, retrying transient failures within the retry budget
+     * of the operation. A 401 invalidates the token and the request is retried
+     * once with a new token; on any other failure the token is kept.
+     *
+     * @return The response of the last attempt
+     */
+    private HttpResponse execute(HttpRequestBase request, String path, Office365RetryPolicy.Budget budget) throws IOException {
+        boolean tokenRenewed = false;
+
+        while (true) {
+            HttpResponse response;
+            try {
+                response = this.httpClient.execute(request);
+            } catch (IOException ioe) {
+                // Only safe to resend if repeating the request has no further effect
+                long delay = isIdempotent(request) ? budget.nextDelay(null) : -1;
+                if (delay < 0) {
+                    throw ioe;
                 }
-                count++;
+                log.info("IOException on {0} to {1}, retry {2} in {3} ms", request.getMethod(), path, budget.getRetries(), delay);
+                sleepBeforeRetry(delay, path);
+                continue;
+            }
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED && !tokenRenewed) {
+                log.info("Unauthorized on {0} to {1}, retrying with a new token", request.getMethod(), path);
+                releaseConnection(response);
+                this.invalidateToken();
+                request.setHeader("Authorization", this.getToken());
+                tokenRenewed = true;
+                continue;
+            }
+
+            if (Office365RetryPolicy.isTransient(statusCode)) {
+                long delay = budget.nextDelay(response.getFirstHeader("Retry-After"));
+                if (delay >= 0) {
+                    log.info("Received {0} on {1} to {2}, retry {3} in {4} ms", statusCode, request.getMethod(), path, budget.getRetries(), delay);
+                    releaseConnection(response);
+                    sleepBeforeRetry(delay, path);
+                    continue;
+                }
+                log.error("Retry budget exhausted for {0} to {1} after {2} retries", request.getMethod(), path, budget.getRetries());
             }
-        }
 
-        return this.token;
+            return response;
+        }
     }
 
-    private void invalidateToken() {
-        log.info("Token invalidated");
-        this.token = null;
+    private static boolean isIdempotent(HttpRequestBase request) {
+        return !HttpPost.METHOD_NAME.equals(request.getMethod());
     }
 
-    public JSONObject getRequest(String path) {
-        log.info("getRequest(" + path + ")");
+    private static void sleepBeforeRetry(long delay, String path) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting to retry " + path);
+        }
+    }
 
+    private HttpGet createGet(String path) {
         HttpGet get = new HttpGet(getAPIEndPoint(path));
 
         get.addHeader("Authorization", this.getToken());
@@ -163,60 +362,258 @@ public class Office365Connection {
         get.addHeader("MaxDataServiceVersion", "3.0;NetFx");
         get.addHeader("Accept", "application/json");
 
-        HttpClient httpClient = HttpClientBuilder.create().build();
+        return get;
+    }
 
+    public JSONObject getRequest(String path) {
+        return getRequest(path, newRetryBudget());
+    }
+
+    /**
+     * @param budget Retry budget of the operation the request is part of
+     */
+    public JSONObject getRequest(String path, Office365RetryPolicy.Budget budget) {
+        log.info("getRequest(" + path + ")");
+
+        HttpResponse response = null;
         try {
-            HttpResponse response = httpClient.execute(get);
-            HttpEntity entity = response.getEntity();
+            response = execute(createGet(path), path, budget);
+            return handleGetResponse(path, response);
+        } catch (ClientProtocolException cpe) {
+            log.error(cpe, "Error doing getRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path);
+        } catch (IOException ioe) {
+            log.error(ioe, "IOE Error doing getRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path);
+        } catch (JSONException je) {
+            log.error(je, "Error parsing JSON from get request to path {0}", path);
+            throw new ConnectorException("Exception which converting to JSON " + path);
+        } finally {
+            releaseConnection(response);
+        }
+    }
 
-            if (response.getStatusLine().getStatusCode() != 200) {
-                log.error("An error occured running a get operation");
-                this.invalidateToken();
-                StringBuffer sb = new StringBuffer();
-                if (entity != null && entity.getContent() != null) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
-                    String s = null;
+    /**
+     * Same as {@link #getRequest(String, Office365RetryPolicy.Budget)} but gives null rather than failing if the object does not exist
+     */
+    JSONObject getRequestIfFound(String path, Office365RetryPolicy.Budget budget) {
+        log.info("getRequestIfFound(" + path + ")");
+
+        HttpResponse response = null;
+        try {
+            response = execute(createGet(path), path, budget);
+            if (response.getStatusLine().getStatusCode() == 404) {
+                log.info("{0} not found", path);
+                return null;
+            }
+            return handleGetResponse(path, response);
+        } catch (ClientProtocolException cpe) {
+            log.error(cpe, "Error doing getRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path);
+        } catch (IOException ioe) {
+            log.error(ioe, "IOE Error doing getRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path);
+        } catch (JSONException je) {
+            log.error(je, "Error parsing JSON from get request to path {0}", path);
+            throw new ConnectorException("Exception which converting to JSON " + path);
+        } finally {
+            releaseConnection(response);
+        }
+    }
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+    private JSONObject handleGetResponse(String path, HttpResponse response) throws IOException, JSONException {
+        if (response.getStatusLine().getStatusCode() != 200) {
+            log.error("An error occured running a get operation");
+            throw new ConnectorException("Error on get to " + path + ". Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + readResponse(response));
+        } else {
+            String body = readResponse(response);
+            log.info("Received in response to getRequest ({0}) : {1}", path, body);
+            return new JSONObject(body);
+        }
+    }
 
-                    while ((s = in.readLine()) != null) {
-                        sb.append(s);
-                    }
-                }
-                throw new ConnectorException("Error on get to " + path + ". Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + sb.toString());
+    /**
+     * Receives the objects of a paged collection one at a time
+     */
+    public interface ObjectHandler {
+        /**
+         * @return false to stop reading further objects/pages
+         */
+        boolean handle(JSONObject object) throws JSONException;
+    }
+
+    /**
+     * Retrieves a collection following odata.nextLink until the last page,
+     * handing each object of a page to the handler before the next page is requested
+     *
+     * @param path Path including the api-version query parameter
+     * @param pageSize Value for $top, capped at {@link #MAX_PAGE_SIZE}
+     * @param handler Receives every object of the collection
+     */
+    public void getPagedRequest(String path, int pageSize, ObjectHandler handler) {
+        getPagedRequest(path, pageSize, newRetryBudget(), handler);
+    }
+
+    /**
+     * @param budget Retry budget of the operation, shared by all of the pages
+     */
+    public void getPagedRequest(String path, int pageSize, Office365RetryPolicy.Budget budget, ObjectHandler handler) {
+        String pagePath = path + "&$top=" + Math.min(pageSize, MAX_PAGE_SIZE);
+        int page = 0;
+
+        while (pagePath != null) {
+            page++;
+            log.info("Requesting page {0} of {1}", page, path);
+            String skipToken = getSkipToken(streamRequest(pagePath, budget, handler));
+            if (skipToken != null) {
+                pagePath = path + "&$top=" + Math.min(pageSize, MAX_PAGE_SIZE) + "&$skiptoken=" + skipToken;
             } else {
-                StringBuffer sb = new StringBuffer();
-                if (entity != null && entity.getContent() != null) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
-                    String s = null;
+                pagePath = null;
+            }
+        }
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+        log.info("Read {0} page(s) of {1}", page, path);
+    }
 
-                    while ((s = in.readLine()) != null) {
-                        sb.append(s);
-                    }
-                }
+    /**
+     * GET a single page of a collection, parsing the response as it is read
+     * from the wire and handing each object of the "value" array to the handler
+     *
+     * @return The odata.nextLink, null on the last page or if the handler stopped reading
+     */
+    private String streamRequest(String path, Office365RetryPolicy.Budget budget, ObjectHandler handler) {
+        return streamPage(createGet(path), path, budget, handler).getNextLink();
+    }
 
-                log.info("Received in response to getRequest ({0}) : {1}", path, sb.toString().trim());
+    private Office365JsonPageReader streamPage(HttpGet get, String path, Office365RetryPolicy.Budget budget, ObjectHandler handler) {
+        log.info("streamRequest(" + path + ")");
 
-                return new JSONObject(sb.toString().trim());
+        HttpResponse response = null;
+        try {
+            response = execute(get, path, budget);
+            HttpEntity entity = response.getEntity();
+
+            if (response.getStatusLine().getStatusCode() != 200) {
+                log.error("An error occured running a get operation");
+                throw new ConnectorException("Error on get to " + path + ". Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + readResponse(response));
+            }
+
+            if (entity == null) {
+                throw new ConnectorException("Empty response on get to " + path);
+            }
+
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            Office365JsonPageReader reader = new Office365JsonPageReader(new InputStreamReader(entity.getContent(), charset != null ? charset : Consts.UTF_8));
+            reader.read(handler);
+            log.info("Read {0} object(s) in response to streamRequest ({1})", reader.getCount(), path);
+
+            if (reader.isStopped()) {
+                // Don't download the rest of the page, just drop the connection
+                get.abort();
             }
+
+            return reader;
         } catch (ClientProtocolException cpe) {
-            log.error(cpe, "Error doing getRequest to path {0}", path);
+            log.error(cpe, "Error doing streamRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing GET to " + path);
         } catch (IOException ioe) {
-            log.error(ioe, "IOE Error doing getRequest to path {0}", path);
+            log.error(ioe, "IOE Error doing streamRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing GET to " + path);
         } catch (JSONException je) {
-            log.error(je, "Error parsing JSON from get request to path {0}", path);
+            log.error(je, "Error parsing JSON from stream request to path {0}", path);
             throw new ConnectorException("Exception which converting to JSON " + path);
+        } finally {
+            releaseConnection(response);
         }
     }
 
-    public Uid postRequest(String path, JSONObject body) {
+    /**
+     * Runs a differential query, following aad.nextLink until the aad.deltaLink is returned
+     *
+     * @param path Path of the collection including the api-version query parameter
+     * @param deltaToken Token returned by a previous query, empty to start from the beginning
+     * @param latestOnly Only ask for the latest token, without the changes leading to it
+     * @param handler Receives every object changed since the token, deleted ones having aad.isDeleted set
+     * @return The token for the next query, null if the handler stopped before the end
+     */
+    public String getDeltaRequest(String path, String deltaToken, boolean latestOnly, DeltaHandler handler) {
+        return getDeltaRequest(path, deltaToken, latestOnly, newRetryBudget(), handler);
+    }
 
-        log.info("postRequest(" + path + ")");
+    /**
+     * @param budget Retry budget of the operation, shared by all of the pages
+     */
+    public String getDeltaRequest(String path, String deltaToken, boolean latestOnly, Office365RetryPolicy.Budget budget, DeltaHandler handler) {
+        String token = deltaToken;
+        int page = 0;
+
+        while (true) {
+            page++;
+            log.info("Requesting delta page {0} of {1}", page, path);
+            final String pageToken = token;
+            HttpGet get = createGet(path + "&deltaLink=" + pageToken);
+            if (latestOnly) {
+                get.addHeader("ocp-aad-dq-include-only-delta-token", "true");
+            }
+            Office365JsonPageReader reader = streamPage(get, path, budget, obj -> handler.handle(obj, pageToken));
+            if (reader.isStopped()) {
+                log.info("Delta query of {0} stopped on page {1}", path, page);
+                return null;
+            } else if (reader.getNextLink() != null) {
+                token = getDeltaToken(reader.getNextLink());
+            } else if (reader.getDeltaLink() != null) {
+                log.info("Read {0} delta page(s) of {1}", page, path);
+                return getDeltaToken(reader.getDeltaLink());
+            } else {
+                throw new ConnectorException("Neither aad.nextLink nor aad.deltaLink returned by delta query of " + path);
+            }
+        }
+    }
+
+    /**
+     * Receives the objects of a differential query
+     */
+    public interface DeltaHandler {
+        /**
+         * @param token Token from which the page holding the object can be read again
+         * @return false to stop reading further objects/pages
+         */
+        boolean handle(JSONObject object, String token) throws JSONException;
+    }
+
+    /**
+     * Extracts the deltaLink token from an aad.nextLink or aad.deltaLink value
+     */
+    static String getDeltaToken(String link) {
+        Matcher m = DELTA_TOKEN_PATTERN.matcher(link);
+        if (m.matches()) {
+            return m.group(1);
+        } else {
+            log.error("No deltaLink found in {0}", link);
+            throw new ConnectorException("Unable to follow delta link " + link);
+        }
+    }
 
+    /**
+     * Extracts the $skiptoken from an odata.nextLink value
+     *
+     * @return null if there is no next page
+     */
+    static String getSkipToken(String nextLink) {
+        if (nextLink == null || nextLink.isEmpty()) {
+            return null;
+        }
+
+        Matcher m = SKIP_TOKEN_PATTERN.matcher(nextLink);
+        if (m.matches()) {
+            return m.group(1);
+        } else {
+            log.error("No $skiptoken found in nextLink {0}", nextLink);
+            throw new ConnectorException("Unable to follow nextLink " + nextLink);
+        }
+    }
+
+    private HttpPost createPost(String path, JSONObject body) {
         HttpPost post = new HttpPost(getAPIEndPoint(path));
         post.addHeader("Authorization", this.getToken());
         // patch.addHeader("Content-Type", "application/json;odata=verbose");
@@ -233,63 +630,69 @@ public class Office365Connection {
         }
 
         post.setEntity(postEntity);
-        HttpClient httpClient = HttpClientBuilder.create().build();
-
-        try {
-            HttpResponse response = httpClient.execute(post);
-            HttpEntity entity = response.getEntity();
-
-            log.info("Status code from postRequest is {0}", response.getStatusLine().getStatusCode());
+        return post;
+    }
 
-            // assignLicense returns 200
+    public Uid postRequest(String path, JSONObject body) {
+        return postRequest(path, body, newRetryBudget());
+    }
 
-            if ((response.getStatusLine().getStatusCode() != 201 && !path.contains("/assignLicense?")) || response.getStatusLine().getStatusCode() == 400) {
-                log.error("An error occured when creating object in Office 365, path was {0}", path);
-                this.invalidateToken();
-                StringBuffer sb = new StringBuffer();
-                if (entity != null && entity.getContent() != null) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
-                    String s = null;
+    /**
+     * @param budget Retry budget of the operation the request is part of
+     */
+    public Uid postRequest(String path, JSONObject body, Office365RetryPolicy.Budget budget) {
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+        log.info("postRequest(" + path + ")");
 
-                    while ((s = in.readLine()) != null) {
-                        sb.append(s);
-                        log.info(s);
-                    }
-                }
-                log.error("Error on post to {0}  and body of {1}. Error code: {2} Received the following response: {3}", path, body.toString(), response.getStatusLine().getStatusCode(), sb.toString());
-                throw new Office365Exception(response.getStatusLine().getStatusCode(), sb.toString());
-                //throw new ConnectorException("Error on post to " + path + " and body of " + body.toString() + ". Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + sb.toString());
-                
-            } else if (path.contains("/assignLicense?") && response.getStatusLine().getStatusCode() == 200) {
-                return SUCCESS_UID;
-            } else {
-                Header[] location = response.getHeaders("Location");
-                // Location: https://directory.windows.net/contoso.onmicrosoft.com/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/Microsoft.WindowsAzure.ActiveDirectory.User
-                Matcher m = directoryObjectGUIDPattern.matcher(location[0].getValue());
-                boolean b = m.matches();
-                if (b) {
-                    String guid = m.group(1);
-                    log.info("Object has GUID of {0}", guid);
-                    return new Uid(guid);
-                } else {
-                    log.error("No GUID found on path {0}", path);
-                    throw new ConnectorException("No GUID found for " + path + " and body of " + body.toString());
-                }
-            }
+        HttpResponse response = null;
+        try {
+            response = execute(createPost(path, body), path, budget);
+            return handlePostResponse(path, body, response);
         } catch (ClientProtocolException cpe) {
             log.error(cpe, "Error doing postRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing POST to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing postRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing POST to " + path);
+        } finally {
+            releaseConnection(response);
         }
     }
 
-    public boolean patchObject(String path, JSONObject body) {
-        log.info("patchRequest(" + path + ")");
+    Uid handlePostResponse(String path, JSONObject body, HttpResponse response) throws IOException {
+        log.info("Status code from postRequest is {0}", response.getStatusLine().getStatusCode());
+
+        // assignLicense returns 200
 
+        if ((response.getStatusLine().getStatusCode() != 201 && !path.contains("/assignLicense?")) || response.getStatusLine().getStatusCode() == 400) {
+            log.error("An error occured when creating object in Office 365, path was {0}", path);
+            String error = readResponse(response);
+            log.error("Error on post to {0}  and body of {1}. Error code: {2} Received the following response: {3}", path, body.toString(), response.getStatusLine().getStatusCode(), error);
+            throw new Office365Exception(response.getStatusLine().getStatusCode(), error);
+            //throw new ConnectorException("Error on post to " + path + " and body of " + body.toString() + ". Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + sb.toString());
+
+        } else if (path.contains("/assignLicense?") && response.getStatusLine().getStatusCode() == 200) {
+            return SUCCESS_UID;
+        } else {
+            Header[] location = response.getHeaders("Location");
+            if (location.length == 0) {
+                throw new ConnectorException("No Location in response to post to " + path + ". Error code: " + response.getStatusLine().getStatusCode());
+            }
+            // Location: https://directory.windows.net/contoso.onmicrosoft.com/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/Microsoft.WindowsAzure.ActiveDirectory.User
+            Matcher m = directoryObjectGUIDPattern.matcher(location[0].getValue());
+            boolean b = m.matches();
+            if (b) {
+                String guid = m.group(1);
+                log.info("Object has GUID of {0}", guid);
+                return new Uid(guid);
+            } else {
+                log.error("No GUID found on path {0}", path);
+                throw new ConnectorException("No GUID found for " + path + " and body of " + body.toString());
+            }
+        }
+    }
+
+    private HttpPatch createPatch(String path, JSONObject body) {
         // http://msdn.microsoft.com/en-us/library/windowsazure/dn151671.aspx
         HttpPatch httpPatch = new HttpPatch(getAPIEndPoint(path));
         httpPatch.addHeader("Authorization", this.getToken());
@@ -307,93 +710,348 @@ public class Office365Connection {
         }
 
         httpPatch.setEntity(postEntity);
-        HttpClient httpClient = HttpClientBuilder.create().build();
-
-        try {
-            HttpResponse response = httpClient.execute(httpPatch);
-            HttpEntity entity = response.getEntity();
-
-            if (response.getStatusLine().getStatusCode() != 204) {
-                log.error("An error occured when modify an object in Office 365");
-                this.invalidateToken();
-                StringBuffer sb = new StringBuffer();
-                if (entity != null && entity.getContent() != null) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
-                    String s = null;
+        return httpPatch;
+    }
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+    public boolean patchObject(String path, JSONObject body) {
+        log.info("patchRequest(" + path + ")");
 
-                    while ((s = in.readLine()) != null) {
-                        sb.append(s);
-                        log.info(s);
-                    }
-                }
-                throw new ConnectorException("Modify Object failed to " + path + " and body of " + body.toString() + ". Error code was " + response.getStatusLine().getStatusCode() + ". Received the following response " + sb.toString());
-            } else {
-                return true;
-            }
+        HttpResponse response = null;
+        try {
+            response = execute(createPatch(path, body), path);
+            return handlePatchResponse(path, body, response);
         } catch (ClientProtocolException cpe) {
             log.error(cpe, "Error doing patchRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing PATCH to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing patchRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing PATCH to " + path);
+        } finally {
+            releaseConnection(response);
         }
     }
 
-    public boolean deleteRequest(String path) {
-        log.info("deleteRequest(" + path + ")");
+    boolean handlePatchResponse(String path, JSONObject body, HttpResponse response) throws IOException {
+        if (response.getStatusLine().getStatusCode() != 204) {
+            log.error("An error occured when modify an object in Office 365");
+            throw new ConnectorException("Modify Object failed to " + path + " and body of " + body.toString() + ". Error code was " + response.getStatusLine().getStatusCode() + ". Received the following response " + readResponse(response));
+        } else {
+            return true;
+        }
+    }
+
+    private HttpDelete createDelete(String path) {
         // http://msdn.microsoft.com/en-us/library/windowsazure/dn151676.aspx
         HttpDelete httpDelete = new HttpDelete(getAPIEndPoint(path));
         httpDelete.addHeader("Authorization", this.getToken());
         httpDelete.addHeader("Content-Type", "application/json");
         httpDelete.addHeader("DataServiceVersion", "3.0;NetFx");
         httpDelete.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        return httpDelete;
+    }
 
-        HttpClient httpClient = HttpClientBuilder.create().build();
+    public boolean deleteRequest(String path) {
+        log.info("deleteRequest(" + path + ")");
 
+        HttpResponse response = null;
         try {
-            HttpResponse response = httpClient.execute(httpDelete);
-            HttpEntity entity = response.getEntity();
-
-            if (response.getStatusLine().getStatusCode() != 204) {
-                log.error("An error occured when deleting an object in Office 365");
-                this.invalidateToken();
-                StringBuffer sb = new StringBuffer();
-                if (entity != null && entity.getContent() != null) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
-                    String s = null;
-
-                    log.info("Response :{0}", response.getStatusLine().toString());
-
-                    while ((s = in.readLine()) != null) {
-                        sb.append(s);
-                        log.info(s);
-                    }
-                }
-                throw new ConnectorException("Delete Object failed to " + path + ". Error code was " + response.getStatusLine().getStatusCode() + ". Received the following response " + sb.toString());
-            } else {
-                return true;
-            }
+            response = execute(createDelete(path), path);
+            return handleDeleteResponse(path, response);
         } catch (ClientProtocolException cpe) {
             log.error(cpe, "Error doing deleteRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing DELETE to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing deleteRequest to path {0}", path);
             throw new ConnectorException("Exception whilst doing DELETE to " + path);
+        } finally {
+            releaseConnection(response);
         }
     }
 
-    public String getServicePlanId(String planName) {
-        if (shouldReloadCache(this.configuration.getCacheRefreshInterval())) {
-        	populateCache(this);
+    boolean handleDeleteResponse(String path, HttpResponse response) throws IOException {
+        if (response.getStatusLine().getStatusCode() != 204) {
+            log.error("An error occured when deleting an object in Office 365");
+            throw new ConnectorException("Delete Object failed to " + path + ". Error code was " + response.getStatusLine().getStatusCode() + ". Received the following response " + readResponse(response));
+        } else {
+            return true;
         }
+    }
 
-        if (servicePlanIDs != null) {
-            return servicePlanIDs.get(planName);
-        } else {
-            return null;
+    /*
+     * Non blocking variants of the requests above. They run on the NIO client,
+     * so a few threads can keep many requests in flight. Failures complete the
+     * future exceptionally with the same exceptions the blocking variants throw.
+     * Dependent stages run on the I/O dispatch thread unless an *Async
+     * composition method is used, so they should not block. The variants taking
+     * a retry budget share it with the other requests of the same operation.
+     */
+
+    public CompletableFuture<JSONObject> getRequestAsync(String path) {
+        return getRequestAsync(path, newRetryBudget());
+    }
+
+    public CompletableFuture<JSONObject> getRequestAsync(String path, Office365RetryPolicy.Budget budget) {
+        log.info("getRequestAsync(" + path + ")");
+
+        return executeAsync(createGet(path), path, budget).thenApply(response -> {
+            try {
+                return handleGetResponse(path, response);
+            } catch (IOException ioe) {
+                log.error(ioe, "IOE Error doing getRequestAsync to path {0}", path);
+                throw new ConnectorException("Exception whilst doing GET to " + path);
+            } catch (JSONException je) {
+                log.error(je, "Error parsing JSON from get request to path {0}", path);
+                throw new ConnectorException("Exception which converting to JSON " + path);
+            }
+        });
+    }
+
+    public CompletableFuture<Uid> postRequestAsync(String path, JSONObject body) {
+        return postRequestAsync(path, body, newRetryBudget());
+    }
+
+    public CompletableFuture<Uid> postRequestAsync(String path, JSONObject body, Office365RetryPolicy.Budget budget) {
+        log.info("postRequestAsync(" + path + ")");
+
+        return executeAsync(createPost(path, body), path, budget).thenApply(response -> {
+            try {
+                return handlePostResponse(path, body, response);
+            } catch (IOException ioe) {
+                log.error(ioe, "IOE Error doing postRequestAsync to path {0}", path);
+                throw new ConnectorException("Exception whilst doing POST to " + path);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> patchObjectAsync(String path, JSONObject body) {
+        return patchObjectAsync(path, body, newRetryBudget());
+    }
+
+    public CompletableFuture<Boolean> patchObjectAsync(String path, JSONObject body, Office365RetryPolicy.Budget budget) {
+        log.info("patchObjectAsync(" + path + ")");
+
+        return executeAsync(createPatch(path, body), path, budget).thenApply(response -> {
+            try {
+                return handlePatchResponse(path, body, response);
+            } catch (IOException ioe) {
+                log.error(ioe, "IOE Error doing patchObjectAsync to path {0}", path);
+                throw new ConnectorException("Exception whilst doing PATCH to " + path);
+            }
+        });
+    }
+
+    /**
+     * PATCH which is merged with any other PATCH to the same path made within
+     * the write coalescing window, by any connection to the tenancy, see Office365WriteCoalescer. Blocks until the
+     * merged request has been sent and gives the result, or the exception, the
+     * blocking variant would have given. Same as patchObject if coalescing is disabled.
+     */
+    public boolean patchObjectCoalesced(String path, JSONObject body) {
+        if (this.writeCoalescer == null) {
+            return patchObject(path, body);
+        }
+
+        log.info("patchObjectCoalesced(" + path + ")");
+        try {
+            return this.writeCoalescer.patch(this.coalescedSender, path, body, this.configuration.getWriteCoalescingWindow()).join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause() != null ? ce.getCause() : ce;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ConnectorException("Exception whilst doing PATCH to " + path, cause);
+        }
+    }
+
+    public CompletableFuture<Boolean> deleteRequestAsync(String path) {
+        log.info("deleteRequestAsync(" + path + ")");
+
+        return executeAsync(createDelete(path), path).thenApply(response -> {
+            try {
+                return handleDeleteResponse(path, response);
+            } catch (IOException ioe) {
+                log.error(ioe, "IOE Error doing deleteRequestAsync to path {0}", path);
+                throw new ConnectorException("Exception whilst doing DELETE to " + path);
+            }
+        });
+    }
+
+    /*
+     * Batched variants of the write requests. Operations are queued and sent
+     * together as $batch requests, see Office365BatchQueue. Each future is
+     * completed with the result, or the exception, the blocking variant would
+     * have given.
+     */
+
+    public CompletableFuture<Uid> postRequestBatched(String path, JSONObject body) {
+        log.info("postRequestBatched(" + path + ")");
+        return this.batchQueue.add("POST", path, body, response -> handlePostResponse(path, body, response));
+    }
+
+    public CompletableFuture<Boolean> patchObjectBatched(String path, JSONObject body) {
+        log.info("patchObjectBatched(" + path + ")");
+        return this.batchQueue.add("PATCH", path, body, response -> handlePatchResponse(path, body, response));
+    }
+
+    public CompletableFuture<Boolean> deleteRequestBatched(String path) {
+        log.info("deleteRequestBatched(" + path + ")");
+        return this.batchQueue.add("DELETE", path, null, response -> handleDeleteResponse(path, response));
+    }
+
+    /**
+     * Sends the queued batched operations without waiting for the batch to fill or the flush interval to pass
+     */
+    public void flushBatch() {
+        this.batchQueue.flush();
+    }
+
+    /**
+     * Same retry rules as {@link #execute(HttpRequestBase, String, Office365RetryPolicy.Budget)}, the waits
+     * being scheduled rather than blocking a thread
+     */
+    CompletableFuture<HttpResponse> executeAsync(HttpRequestBase request, String path) {
+        return executeAsync(request, path, newRetryBudget());
+    }
+
+    CompletableFuture<HttpResponse> executeAsync(HttpRequestBase request, String path, Office365RetryPolicy.Budget budget) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        executeAsync(request, path, budget, false, future);
+        return future;
+    }
+
+    private void executeAsync(final HttpRequestBase request, final String path, final Office365RetryPolicy.Budget budget,
+            final boolean tokenRenewed, final CompletableFuture<HttpResponse> future) {
+        CloseableHttpAsyncClient client;
+        try {
+            client = getAsyncClient();
+        } catch (ConnectorException ce) {
+            future.completeExceptionally(ce);
+            return;
+        }
+
+        client.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == HttpStatus.SC_UNAUTHORIZED && !tokenRenewed) {
+                    log.info("Unauthorized on {0} to {1}, retrying with a new token", request.getMethod(), path);
+                    invalidateToken();
+                    // Getting a token blocks, so keep it off the I/O dispatch thread and the scheduler
+                    renewTokenAndRetry(() -> {
+                        request.setHeader("Authorization", getToken());
+                        executeAsync(request, path, budget, true, future);
+                    }, future);
+                    return;
+                }
+
+                if (Office365RetryPolicy.isTransient(statusCode)) {
+                    long delay = budget.nextDelay(response.getFirstHeader("Retry-After"));
+                    if (delay >= 0) {
+                        log.info("Received {0} on {1} to {2}, retry {3} in {4} ms", statusCode, request.getMethod(), path, budget.getRetries(), delay);
+                        scheduleRetry(delay, () -> executeAsync(request, path, budget, tokenRenewed, future), future);
+                        return;
+                    }
+                    log.error("Retry budget exhausted for {0} to {1} after {2} retries", request.getMethod(), path, budget.getRetries());
+                }
+
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                long delay = isIdempotent(request) ? budget.nextDelay(null) : -1;
+                if (delay >= 0) {
+                    log.info("Exception on {0} to {1}, retry {2} in {3} ms", request.getMethod(), path, budget.getRetries(), delay);
+                    scheduleRetry(delay, () -> executeAsync(request, path, budget, tokenRenewed, future), future);
+                } else {
+                    log.error(ex, "Error doing {0} to path {1}", request.getMethod(), path);
+                    future.completeExceptionally(new ConnectorException("Exception whilst doing " + request.getMethod() + " to " + path, ex));
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+    }
+
+    private void scheduleRetry(long delay, Runnable retry, CompletableFuture<?> future) {
+        try {
+            this.scheduler.schedule(() -> {
+                try {
+                    retry.run();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            future.completeExceptionally(new ConnectorException("Connection disposed whilst waiting to retry", ree));
+        }
+    }
+
+    private void renewTokenAndRetry(Runnable retry, CompletableFuture<?> future) {
+        try {
+            this.worker.execute(() -> {
+                try {
+                    retry.run();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            future.completeExceptionally(new ConnectorException("Connection disposed whilst renewing the token", ree));
+        }
+    }
+
+    /**
+     * The NIO client is only started the first time a non blocking request is made,
+     * and never once the connection has been disposed
+     */
+    private synchronized CloseableHttpAsyncClient getAsyncClient() {
+        if (this.disposed) {
+            throw new ConnectorException("Connection to " + this.configuration.getTenancy() + " has been disposed");
         }
+        if (this.asyncClient == null) {
+            this.asyncClient = HttpAsyncClients.custom()
+                    .setMaxConnTotal(this.configuration.getMaxConnectionsTotal())
+                    .setMaxConnPerRoute(this.configuration.getMaxConnectionsPerRoute())
+                    .setKeepAliveStrategy(this.keepAliveStrategy)
+                    .build();
+            this.asyncClient.start();
+        }
+        return this.asyncClient;
+    }
+
+    private String readResponse(HttpResponse response) throws IOException {
+        log.info("Response :{0}", response.getStatusLine().toString());
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return "";
+        }
+        return EntityUtils.toString(entity, Consts.UTF_8).trim();
+    }
+
+    /**
+     * Consume whatever is left of the response so the underlying connection
+     * goes back to the pool instead of being discarded
+     */
+    private void releaseConnection(HttpResponse response) {
+        if (response != null) {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    /**
+     * Statistics of the HTTP connection pool, to help sizing the
+     * maxConnectionsTotal and maxConnectionsPerRoute settings
+     */
+    public PoolStats getPoolStats() {
+        return this.connectionManager.getTotalStats();
+    }
+
+    public String getServicePlanId(String planName) {
+        return getLicenseCatalog().getServicePlanId(planName);
     }
 
     public String getLicensePlanId(String licenseName) {
@@ -407,136 +1065,113 @@ public class Office365Connection {
     }
 
     public Office365License getLicensePlan(String licenseName) {
-        if (shouldReloadCache(this.configuration.getCacheRefreshInterval())) {
-        	populateCache(this);
-        }
-
-        return licenses.get(licenseName);
+        return getLicenseCatalog().getLicense(licenseName);
     }
     
     public Office365License getLicensePlanBySku(String licenseSku) {
-        if (shouldReloadCache(this.configuration.getCacheRefreshInterval())) {
-            populateCache(this);
-        }
-        String licenseName = licensesBySkuId.get(licenseSku);
-        return this.getLicensePlan(licenseName);
+        return getLicenseCatalog().getLicenseBySku(licenseSku);
     }
 
-    private static boolean shouldReloadCache(long intervalInMinutes) {
-    	log.info("shouldReloadCache -> current: {0} / last: {1} / interval: {2}" , System.currentTimeMillis(), lastRefreshTimestamp, intervalInMinutes);
-    	if (System.currentTimeMillis() - lastRefreshTimestamp > (intervalInMinutes * 60 * 1000)) {
-    		return true;
-    	}
-    	if (licenses == null || licenses.size() == 0) {
-    		return true;
-    	}
-    	if (servicePlanIDs == null || servicePlanIDs.size() == 0) {
-    		return true;
-    	}
-    	return false;
+    /**
+     * @return The current license catalog of the tenancy, only waiting for it to be loaded the first time
+     */
+    public Office365LicenseCatalog getLicenseCatalog() {
+        Office365LicenseCatalog catalog = this.licenseCatalog.get();
+        if (catalog.isEmpty()) {
+            catalog = reloadLicenseCatalog(catalog);
+        } else if (catalog.isStale(this.configuration.getCacheRefreshInterval())) {
+            // The scheduled refresh must have failed, keep serving this one whilst trying again
+            refreshLicenseCatalog();
+        }
+        return catalog;
     }
-    
-    
-    private synchronized static void populateCache(Office365Connection connection) {
-        log.info("populate cache");
-        JSONObject obj = connection.getRequest("/subscribedSkus?api-version=" + Office365Connection.API_VERSION);
-        try {
-            JSONArray skus = obj.getJSONArray("value");
-            for (int i = 0; i < skus.length(); i++) {
-                JSONObject sku = skus.getJSONObject(i);
-
-                String skuID = sku.getString("skuId");
-                String skuPartNumber = sku.getString("skuPartNumber");
-                
-                licensesBySkuId.put(skuID, skuPartNumber);
-
-                Office365License license = new Office365License(skuID);
-                license.setSkuPartNumber(skuPartNumber);
-                license.setObjectID(sku.getString("objectId"));
-                license.setConsumedUnits(sku.getInt("consumedUnits"));
-                JSONObject prepaidUnits = sku.getJSONObject("prepaidUnits");
-                license.setPrepaidUnitsEnabled(prepaidUnits.getInt("enabled"));
-                license.setPrepaidUnitsSuspended(prepaidUnits.getInt("suspended"));
-                license.setPrepaidUnitsWarning(prepaidUnits.getInt("warning"));
-
-                JSONArray servicePlans = sku.getJSONArray("servicePlans");
-
-                for (int j = 0; j < servicePlans.length(); j++) {
-                    JSONObject planObj = servicePlans.getJSONObject(j);
-                    String planID = planObj.getString("servicePlanId");
-                    String planName = planObj.getString("servicePlanName");
-                    Office365ServicePlan plan = new Office365ServicePlan(planID, planName);
-                    license.addServicePlan(plan);
-
-                    servicePlanIDs.put(planName, planID);
-                }
 
-                licenses.put(skuPartNumber, license);
-            }
-        } catch (JSONException je) {
-            log.error(je, "Error populating skus");
+    /**
+     * Loads a new catalog in the background, the current one staying in use until it
+     * has been loaded and for good if loading it fails
+     */
+    private void refreshLicenseCatalog() {
+        if (!this.licenseCatalogRefreshing.compareAndSet(false, true)) {
+            return;
         }
-        lastRefreshTimestamp = System.currentTimeMillis();
-    }
 
-    public Office365Domain getDomain(String name) {
-        if (this.verifiedDomains == null || this.verifiedDomains.size() == 0) {
-            populateVerifiedDomains();
+        log.info("Refreshing license catalog of {0}", this.configuration.getTenancy());
+        CompletableFuture<JSONObject> response;
+        try {
+            response = getRequestAsync(SUBSCRIBED_SKUS_PATH);
+        } catch (RuntimeException e) {
+            this.licenseCatalogRefreshing.set(false);
+            log.error(e, "Error refreshing license catalog, keeping the previous one");
+            return;
         }
 
-        return this.verifiedDomains.get(name.toLowerCase());
+        // Parsing and saving the snapshot block, so keep them off the I/O dispatch thread
+        response.thenAcceptAsync(obj -> {
+            try {
+                Office365LicenseCatalog catalog = Office365LicenseCatalog.fromSubscribedSkus(obj);
+                this.licenseCatalog.set(catalog);
+                log.info("Refreshed {0} license(s) for {1}", catalog.getLicenses().size(), this.configuration.getTenancy());
+                if (this.snapshot != null) {
+                    this.snapshot.saveSubscribedSkus(obj);
+                }
+            } catch (JSONException je) {
+                log.error(je, "Error populating skus, keeping the previous license catalog");
+            }
+        }, this.worker).whenComplete((v, e) -> {
+            this.licenseCatalogRefreshing.set(false);
+            if (e != null) {
+                log.error(e, "Error refreshing license catalog, keeping the previous one");
+            }
+        });
     }
 
-    private void populateVerifiedDomains() {
-        log.info("populateVerifiedDomains");
-        this.verifiedDomains = new HashMap<String, Office365Domain>();
-
-
-        JSONObject obj = getRequest("/tenantDetails?api-version=" + Office365Connection.API_VERSION);
-        try {
-            JSONArray verifiedDomains = obj.getJSONArray("value").getJSONObject(0).getJSONArray("verifiedDomains");
-
-            for (int i = 0; i < verifiedDomains.length(); i++) {
-                JSONObject domainObj = verifiedDomains.getJSONObject(i);
-
-                Office365Domain domain = null;
-                String name = domainObj.getString("name").toLowerCase();
-                String type = domainObj.getString("type");
-                if (type.equals("Federated")) {
-                    log.info("Got a Federated domain named {0}", name);
-                    domain = new Office365FederatedDomain(name);
-                    this.verifiedDomains.put(name, domain);
-                } else if (type.equals("Managed")) {
-                    log.info("Got a Managed domain named {0}", name);
-                    domain = new Office365ManagedDomain(name);
-                    this.verifiedDomains.put(name, domain);
-                } else if (type.equals("None")) {
-                    log.info("Received a None domain for {0},  skipping", name);
-                } else {
-                    log.error("Unrecognised type of {0} passed for domain {1}", type, domain);
-                    throw new ConnectorException("Unrecognised domain type of " + type + " received for doman " + name);
-                }
+    /**
+     * Loads a new catalog and publishes it, unless another thread already replaced the stale one
+     */
+    private Office365LicenseCatalog reloadLicenseCatalog(Office365LicenseCatalog stale) {
+        synchronized (this.licenseCatalog) {
+            Office365LicenseCatalog current = this.licenseCatalog.get();
+            if (current != stale) {
+                return current;
+            }
 
-                if (domain != null) {
-                    domain.initiliseCapability(domainObj.getString("capabilities").split(","));
-                    domain.setDefaultDomain(domainObj.getBoolean("default"));
-                    domain.setId(domainObj.getString("id"));
-                    domain.setInitial(domainObj.getBoolean("initial"));
+            log.info("populate cache");
+            JSONObject obj = getRequest(SUBSCRIBED_SKUS_PATH);
+            try {
+                Office365LicenseCatalog catalog = Office365LicenseCatalog.fromSubscribedSkus(obj);
+                this.licenseCatalog.set(catalog);
+                log.info("Loaded {0} license(s) for {1}", catalog.getLicenses().size(), this.configuration.getTenancy());
+                if (this.snapshot != null) {
+                    this.snapshot.saveSubscribedSkus(obj);
                 }
+                return catalog;
+            } catch (JSONException je) {
+                log.error(je, "Error populating skus");
+                return current;
             }
-
-            log.info("Finished reading verified domains");
-        } catch (JSONException je) {
-            log.error(je, "Error populating verified domains");
         }
     }
 
+    /**
+     * @return The verified domain, or its closest verified ancestor, null if there is none
+     */
+    public Office365Domain getDomain(String name) {
+        return this.domainCache.getDomain(this, name,
+                TimeUnit.MINUTES.toMillis(this.configuration.getDomainCacheTimeout()),
+                TimeUnit.SECONDS.toMillis(this.configuration.getDomainNegativeCacheTimeout()));
+    }
+
+    /**
+     * @return How many verified domains the tenancy has, loading them unless already loaded
+     */
+    int loadVerifiedDomains() {
+        return this.domainCache.load(this, TimeUnit.MINUTES.toMillis(this.configuration.getDomainCacheTimeout())).size();
+    }
+
     public boolean isUserInAFederatedDomain(String userPrinciaplName) {
         log.info("isUserInAFederatedDomain {0}", userPrinciaplName);
 
-        String[] parts = userPrinciaplName.split("@");
-
-        Office365Domain dom = getDomain(parts[1]);
+        Office365Domain dom = getDomain(userPrinciaplName.substring(userPrinciaplName.lastIndexOf('@') + 1));
 
         if (dom != null) {
             if (dom.getDomainType() == Office365Domain.DOMAIN_TYPE_FEDERATED) {
@@ -549,7 +1184,7 @@ public class Office365Connection {
         }
     }
 
-    private String getAPIEndPoint(String path) {
+    String getAPIEndPoint(String path) {
         log.info("API path is: {0}", path);
         return this.configuration.getProtocol() + this.configuration.getApiEndPoint() + "/" + this.configuration.getTenancy() + path;
     }
@@ -576,11 +1211,142 @@ public class Office365Connection {
     }
 
     public void licenseAssignmentRequest(Uid uid, JSONObject request) {
+    	licenseAssignmentRequest(uid, request, newRetryBudget());
+    }
+
+    public void licenseAssignmentRequest(Uid uid, JSONObject request, Office365RetryPolicy.Budget budget) {
     	log.info("Request to assignLicense endpoint for user {0} with body {1}", uid.getUidValue(), request );
-    	Uid returnedUid = this.postRequest("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, request);
+    	try {
+    		Uid returnedUid = this.postRequest("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, request, budget);
+    		checkLicenseAssignment(returnedUid);
+    	} catch (RuntimeException e) {
+    		this.userCache.invalidate(uid.getUidValue());
+    		throw e;
+    	}
+    	licenseAssignmentApplied(uid, request);
+    }
+
+    public CompletableFuture<Void> licenseAssignmentRequestAsync(Uid uid, JSONObject request) {
+    	return licenseAssignmentRequestAsync(uid, request, newRetryBudget());
+    }
+
+    public CompletableFuture<Void> licenseAssignmentRequestAsync(Uid uid, JSONObject request, Office365RetryPolicy.Budget budget) {
+    	log.info("Async request to assignLicense endpoint for user {0} with body {1}", uid.getUidValue(), request );
+    	return this.postRequestAsync("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, request, budget)
+    			.thenAccept(returnedUid -> checkLicenseAssignment(returnedUid))
+    			.whenComplete((v, e) -> licenseAssignmentCompleted(uid, request, e));
+    }
+
+    public CompletableFuture<Void> licenseAssignmentRequestBatched(Uid uid, JSONObject request) {
+    	log.info("Batched request to assignLicense endpoint for user {0} with body {1}", uid.getUidValue(), request );
+    	return this.postRequestBatched("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, request)
+    			.thenAccept(returnedUid -> checkLicenseAssignment(returnedUid))
+    			.whenComplete((v, e) -> licenseAssignmentCompleted(uid, request, e));
+    }
+
+    private void licenseAssignmentCompleted(Uid uid, JSONObject request, Throwable e) {
+    	if (e != null) {
+    		this.userCache.invalidate(uid.getUidValue());
+    	} else {
+    		licenseAssignmentApplied(uid, request);
+    	}
+    }
+
+    private void licenseAssignmentApplied(Uid uid, JSONObject request) {
+    	try {
+    		this.userCache.applyAssignment(uid.getUidValue(), request);
+    	} catch (JSONException je) {
+    		log.error(je, "Unable to apply license assignment {0} to the cached user {1}", request, uid.getUidValue());
+    		this.userCache.invalidate(uid.getUidValue());
+    	}
+    }
+
+    private synchronized void warmUp() {
+        this.warmUp = new Office365WarmUp(this, this.scheduler, TimeUnit.SECONDS.toMillis(this.configuration.getWarmUpTimeout()));
+        this.warmUp.start();
+    }
+
+    /**
+     * @return What the warm-up of the connection loaded, null if it wasn't warmed up
+     */
+    public synchronized String getWarmUpStatus() {
+        return this.warmUp != null ? this.warmUp.getStatus() : null;
+    }
+
+    /**
+     * Answers from the snapshot of the tenancy until the license catalog and verified
+     * domains have been revalidated, which starts straight away in the background
+     */
+    private void warmStart() {
+        if (!this.snapshot.load()) {
+            return;
+        }
+
+        // Only what this connection seeds is revalidated, later connections to the tenancy
+        // find the catalog and domains already loaded and kept fresh by the usual TTLs
+        boolean licensesSeeded = false;
+        boolean domainsSeeded = false;
+        try {
+            JSONObject subscribedSkus = this.snapshot.getSubscribedSkus();
+            Office365LicenseCatalog current = this.licenseCatalog.get();
+            if (subscribedSkus != null && current.isEmpty()) {
+                licensesSeeded = this.licenseCatalog.compareAndSet(current,
+                        Office365LicenseCatalog.fromSubscribedSkus(subscribedSkus, this.snapshot.getSubscribedSkusSavedAt()));
+            }
+            JSONObject tenantDetails = this.snapshot.getTenantDetails();
+            if (tenantDetails != null) {
+                domainsSeeded = this.domainCache.seed(Office365DomainCache.parseVerifiedDomains(tenantDetails));
+            }
+        } catch (JSONException | ConnectorException e) {
+            log.error(e, "Ignoring snapshot of {0}", this.configuration.getTenancy());
+            return;
+        }
+
+        // Both block on the Graph API, so they run on the worker rather than holding up the scheduler
+        if (licensesSeeded) {
+            this.worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refreshLicenseCatalog();
+                    } catch (RuntimeException e) {
+                        log.error(e, "Error revalidating the licenses in the snapshot of {0}", configuration.getTenancy());
+                    }
+                }
+            });
+        }
+        if (domainsSeeded) {
+            this.worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        domainCache.refresh(Office365Connection.this);
+                    } catch (RuntimeException e) {
+                        log.error(e, "Error revalidating the domains in the snapshot of {0}", configuration.getTenancy());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The local snapshot of the tenancy, null if not configured
+     */
+    Office365Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * @return The licenses assigned to recently seen users
+     */
+    Office365UserCache getUserCache() {
+    	return this.userCache;
+    }
+
+    private void checkLicenseAssignment(Uid returnedUid) {
     	if (returnedUid == null || !returnedUid.equals(Office365Connection.SUCCESS_UID)) {
-    		log.info("License assignment failed. Returned uid: {0}", returnedUid.getUidValue());
-    		throw new ConnectorException("Error calling assignLicense endpoint: " + returnedUid.getUidValue());
+    		log.info("License assignment failed. Returned uid: {0}", returnedUid);
+    		throw new ConnectorException("Error calling assignLicense endpoint: " + returnedUid);
     	}
     }
     
@@ -588,7 +1354,45 @@ public class Office365Connection {
      * Release internal resources
      */
     public void dispose() {
-        //implementation
+        log.info("Disposing connection, pool stats {0}", getPoolStats());
+        this.disposed = true;
+        synchronized (this) {
+            if (this.warmUp != null) {
+                this.warmUp.cancel();
+            }
+        }
+        this.batchQueue.cancel();
+        if (this.writeCoalescer != null) {
+            this.writeCoalescer.cancel(this.coalescedSender);
+        }
+        this.tokenManager.dispose();
+        this.scheduler.shutdownNow();
+        this.worker.shutdownNow();
+        try {
+            this.httpClient.close();
+        } catch (IOException ioe) {
+            log.error(ioe, "Error closing HTTP client");
+        }
+        synchronized (this) {
+            if (this.asyncClient != null) {
+                try {
+                    this.asyncClient.close();
+                } catch (IOException ioe) {
+                    log.error(ioe, "Error closing asynchronous HTTP client");
+                }
+                this.asyncClient = null;
+            }
+        }
+    }
+
+    /**
+     * Cheap check that a pooled connection can still be used, without calling the Graph API.
+     * An expired token isn't a failure as it is renewed on the next request.
+     */
+    public void checkAlive() {
+        if (this.disposed || this.scheduler.isShutdown()) {
+            throw new ConnectorException("Connection to " + this.configuration.getTenancy() + " has been disposed");
+        }
     }
 
     /**
@@ -606,5 +1410,10 @@ public class Office365Connection {
             log.error(je, "Error testing connection");
             throw new IllegalStateException("Error during test, JSONException thrown");
         }
+
+        String warmUpStatus = getWarmUpStatus();
+        if (warmUpStatus != null) {
+            log.info("Warm-up: {0}", warmUpStatus);
+        }
     }
 }
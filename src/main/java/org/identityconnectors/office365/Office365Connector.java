@@ -31,7 +31,9 @@ import java.util.stream.Collectors;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
 import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.AttributeInfo.Flags;
 import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
@@ -45,17 +47,21 @@ import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
-import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.PoolableConnector;
 import org.identityconnectors.framework.spi.operations.CreateOp;
 import org.identityconnectors.framework.spi.operations.DeleteOp;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 import org.identityconnectors.framework.spi.operations.UpdateAttributeValuesOp;
+import org.identityconnectors.framework.spi.operations.UpdateDeltaOp;
 import org.identityconnectors.framework.spi.operations.UpdateOp;
 
 /**
@@ -66,14 +72,16 @@ import org.identityconnectors.framework.spi.operations.UpdateOp;
  */
 @ConnectorClass(displayNameKey = "Office365.connector.display", configurationClass = Office365Configuration.class)
 public class Office365Connector implements 
-        Connector,
+        PoolableConnector,
         CreateOp,
         DeleteOp,
-        SearchOp<String>,
+        SearchOp<Office365Filter>,
         TestOp,
         UpdateOp,
         SchemaOp,
-        UpdateAttributeValuesOp
+        SyncOp,
+        UpdateAttributeValuesOp,
+        UpdateDeltaOp
     {
 
     public static final String LICENSE_ATTR = "licenses";
@@ -97,7 +105,14 @@ public class Office365Connector implements
      */
     private Office365Configuration configuration;
 
-    private Schema schema = null;
+    /**
+     * The schema doesn't depend on the configuration, so it's built once and shared
+     * by every instance of the connector
+     */
+    private static final class SchemaHolder {
+        private static final Schema SCHEMA = buildSchema();
+        private static final Office365SchemaIndex INDEX = new Office365SchemaIndex(SCHEMA);
+    }
 
     private Office365UserOps userOps;
     
@@ -116,10 +131,23 @@ public class Office365Connector implements
     public void init(Configuration configuration) {
         this.configuration = (Office365Configuration) configuration;
         this.userOps = new Office365UserOps(this);
+
+        if (this.configuration.getWarmUpTimeout() != null && this.configuration.getWarmUpTimeout() > 0) {
+            try {
+                this.configuration.validate();
+            } catch (IllegalArgumentException iae) {
+                // Reported by the first operation, as without warming up
+                log.info("Not warming up, configuration is invalid: {0}", iae.getMessage());
+                return;
+            }
+            this.connection = Office365Connection.createWarmingConnection(this.configuration);
+        }
     }
 
     /**
-     * Disposes of the {@link Office365Connector}'s resources.
+     * Disposes of the {@link Office365Connector}'s resources, the token renewal,
+     * the HTTP connection pools and the scheduled refreshes of the connection.
+     * The license catalog and verified domains are shared by the tenancy and kept.
      * 
      * @see org.identityconnectors.framework.spi.Connector#dispose()
      */
@@ -131,6 +159,21 @@ public class Office365Connector implements
         }
     }
 
+    /**
+     * Called by the framework before reusing a pooled instance, doesn't call the Graph API
+     * so the warm token, catalog and HTTP connections are kept between operations.
+     * 
+     * @see org.identityconnectors.framework.spi.PoolableConnector#checkAlive()
+     */
+    public void checkAlive() {
+        if (this.configuration == null) {
+            throw new ConnectorException("Connector has been disposed");
+        }
+        if (this.connection != null) {
+            this.connection.checkAlive();
+        }
+    }
+
     /******************
      * SPI Operations
      * 
@@ -187,14 +230,14 @@ public class Office365Connector implements
     /**
      * {@inheritDoc}
      */
-    public FilterTranslator<String> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
-        return new Office365FilterTranslator();
+    public FilterTranslator<Office365Filter> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
+        return new Office365FilterTranslator(this, objectClass);
     }
 
     /**
      * {@inheritDoc}
      */
-    public void executeQuery(ObjectClass objectClass, String query, ResultsHandler handler, OperationOptions options) {
+    public void executeQuery(ObjectClass objectClass, Office365Filter query, ResultsHandler handler, OperationOptions options) {
         // http://msdn.microsoft.com/en-us/library/windowsazure/jj126255.aspx
         log.info("Execute query for {0}", objectClass);
 
@@ -212,6 +255,38 @@ public class Office365Connector implements
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        log.info("Sync for {0}", objectClass);
+
+        if (handler == null) {
+            throw new IllegalArgumentException("Null Sync Results Handler");
+        }
+
+        if (objectClass.equals(ObjectClass.ACCOUNT)) {
+            this.userOps.syncUsers(token, handler, options);
+        } else {
+            log.info("Unsupported objectClass {0} passed to sync", objectClass.getObjectClassValue());
+            throw new IllegalArgumentException("Unsupported object class "+objectClass.getObjectClassValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+        log.info("Get latest sync token for {0}", objectClass);
+
+        if (objectClass.equals(ObjectClass.ACCOUNT)) {
+            return this.userOps.getLatestSyncToken();
+        } else {
+            log.info("Unsupported objectClass {0} passed to getLatestSyncToken", objectClass.getObjectClassValue());
+            throw new IllegalArgumentException("Unsupported object class "+objectClass.getObjectClassValue());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -240,7 +315,22 @@ public class Office365Connector implements
         }
     }
 
-    private void buildSchema() {
+    /**
+     * {@inheritDoc}
+     */
+    public Set<AttributeDelta> updateDelta(ObjectClass objectClass, Uid uid, Set<AttributeDelta> modifications, OperationOptions options) {
+
+        log.info("UpdateDelta for objectClass {0}", objectClass);
+
+        if (objectClass.equals(ObjectClass.ACCOUNT)) {
+            return userOps.updateUserDelta(uid, modifications, options);
+        } else {
+            log.error("Invalid objectClass {0} specified", objectClass.getObjectClassValue());
+            throw new IllegalArgumentException("Unsupported objectClass of "+objectClass.getObjectClassValue()+" specified");
+        }
+    }
+
+    private static Schema buildSchema() {
         log.info("Build Schema");
 
         // Supports just user Class at the moment
@@ -303,41 +393,32 @@ public class Office365Connector implements
         objectClassInfoBuilderGroup.addAttributeInfo(AttributeInfoBuilder.build("securityEnabled", Boolean.class, EnumSet.of(Flags.REQUIRED)));
         objectClassInfoBuilderGroup.addAttributeInfo(AttributeInfoBuilder.build("members", String.class, EnumSet.of(Flags.MULTIVALUED)));
 
-        this.schema = schemaBuilder.build();
+        return schemaBuilder.build();
     }
 
     @Override
     public Schema schema() {
+        return SchemaHolder.SCHEMA;
+    }
 
-        log.info("Schema");
-
-        if (this.schema == null) {
-            // Need to retrieve
-            log.info("Need to retrieve schema");
-            buildSchema();
-            log.info("Built Schema");
-        }
-
-        log.info("Got schema");
-
-        return this.schema;
+    public boolean isAttributeMultiValues(String objectClass, String attrName) {
+        return SchemaHolder.INDEX.isMultiValued(objectClass, attrName);
+    }
 
+    /**
+     * @return The schema definition of the attribute, null if the object class or attribute is not in the schema
+     */
+    public AttributeInfo getAttributeInfo(String objectClass, String attrName) {
+        return SchemaHolder.INDEX.getAttributeInfo(objectClass, attrName);
     }
 
-    public boolean isAttributeMultiValues(String objectClass, String attrName) {
-        Schema schema = this.schema();
-        ObjectClassInfo oci = schema.findObjectClassInfo(objectClass);
-        for (AttributeInfo ai : oci.getAttributeInfo()) {
-            if(ai.getName().equals(attrName)) {
-                if (ai.getFlags().contains(Flags.MULTIVALUED)) {
-                    return true;
-                }
-            }
-        }
-        
-        return false;
+    /**
+     * @return The Java type of the attribute's values, null if the object class or attribute is not in the schema
+     */
+    public Class<?> getAttributeType(String objectClass, String attrName) {
+        return SchemaHolder.INDEX.getType(objectClass, attrName);
     }
-    
+
     public Office365Connection getConnection() {
     	if (this.connection == null) {
     		this.configuration.validate();
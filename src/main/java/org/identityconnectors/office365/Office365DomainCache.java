@@ -0,0 +1,198 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.office365.domain.Office365Domain;
+import org.identityconnectors.office365.domain.Office365DomainTrie;
+import org.identityconnectors.office365.domain.Office365FederatedDomain;
+import org.identityconnectors.office365.domain.Office365ManagedDomain;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Verified domains of a tenancy, shared by every connection to it.
+ * <p>
+ * The domains are reloaded from /tenantDetails once they are older than the TTL,
+ * or when a name matches none of them so that newly added domains are picked up.
+ * Names which still match nothing are remembered for the negative TTL, during
+ * which looking them up again doesn't cause another reload.
+ */
+class Office365DomainCache {
+
+    private static final Log log = Log.getLog(Office365DomainCache.class);
+
+    private static final ConcurrentMap<String, Office365DomainCache> caches = new ConcurrentHashMap<>();
+    private static final int MAX_NEGATIVE_ENTRIES = 10000;
+
+    private volatile Office365DomainTrie domains = null;
+    private volatile long loadedAt = 0;
+    private final ConcurrentMap<String, Long> misses = new ConcurrentHashMap<>();
+
+    private Office365DomainCache() {
+    }
+
+    static Office365DomainCache forTenancy(String tenancy) {
+        return caches.computeIfAbsent(tenancy.toLowerCase(), t -> new Office365DomainCache());
+    }
+
+    /**
+     * @param ttlMillis How long the domains are used before being reloaded
+     * @param negativeTtlMillis How long a name matching no domain is remembered
+     * @return The verified domain, or its closest verified ancestor, null if there is none
+     */
+    Office365Domain getDomain(Office365Connection connection, String name, long ttlMillis, long negativeTtlMillis) {
+        String key = name.toLowerCase();
+        long now = System.currentTimeMillis();
+
+        Office365DomainTrie current = load(connection, ttlMillis);
+
+        Office365Domain domain = current.find(key);
+        if (domain != null) {
+            return domain;
+        }
+
+        Long missedAt = this.misses.get(key);
+        if (missedAt != null && now - missedAt < negativeTtlMillis) {
+            log.info("Domain {0} is not verified (cached)", key);
+            return null;
+        }
+
+        // Perhaps added since the domains were loaded
+        if (now - this.loadedAt > negativeTtlMillis) {
+            current = reload(connection, current);
+            domain = current.find(key);
+        }
+
+        if (domain == null) {
+            if (this.misses.size() >= MAX_NEGATIVE_ENTRIES) {
+                this.misses.clear();
+            }
+            this.misses.put(key, now);
+        }
+        return domain;
+    }
+
+    /**
+     * @return The domains, loaded first if not yet loaded or older than the TTL
+     */
+    Office365DomainTrie load(Office365Connection connection, long ttlMillis) {
+        Office365DomainTrie current = this.domains;
+        if (current == null || System.currentTimeMillis() - this.loadedAt > ttlMillis) {
+            current = reload(connection, current);
+        }
+        return current;
+    }
+
+    /**
+     * Uses the domains of a snapshot until they are first reloaded, unless already loaded,
+     * returning whether they were used
+     */
+    synchronized boolean seed(List<Office365Domain> snapshot) {
+        if (this.domains != null) {
+            return false;
+        }
+        this.domains = new Office365DomainTrie(snapshot);
+        this.loadedAt = System.currentTimeMillis();
+        log.info("Using {0} verified domains from snapshot", this.domains.size());
+        return true;
+    }
+
+    /**
+     * Reloads the domains whatever their age, keeping the current ones on failure
+     */
+    void refresh(Office365Connection connection) {
+        reload(connection, this.domains);
+    }
+
+    /**
+     * Loads the domains, unless another thread already replaced the ones the caller saw
+     */
+    private synchronized Office365DomainTrie reload(Office365Connection connection, Office365DomainTrie seen) {
+        if (this.domains != seen) {
+            return this.domains;
+        }
+
+        log.info("populateVerifiedDomains");
+        JSONObject obj = connection.getRequest("/tenantDetails?api-version=" + Office365Connection.API_VERSION);
+        try {
+            Office365DomainTrie loaded = new Office365DomainTrie(parseVerifiedDomains(obj));
+            this.domains = loaded;
+            this.loadedAt = System.currentTimeMillis();
+            this.misses.clear();
+            log.info("Finished reading {0} verified domains", loaded.size());
+            if (connection.getSnapshot() != null) {
+                connection.getSnapshot().saveTenantDetails(obj);
+            }
+            return loaded;
+        } catch (JSONException je) {
+            log.error(je, "Error populating verified domains");
+            if (seen != null) {
+                return seen;
+            }
+            throw new ConnectorException("Unable to read verified domains", je);
+        }
+    }
+
+    static List<Office365Domain> parseVerifiedDomains(JSONObject obj) throws JSONException {
+        List<Office365Domain> domains = new ArrayList<>();
+        JSONArray verifiedDomains = obj.getJSONArray("value").getJSONObject(0).getJSONArray("verifiedDomains");
+
+        for (int i = 0; i < verifiedDomains.length(); i++) {
+            JSONObject domainObj = verifiedDomains.getJSONObject(i);
+
+            Office365Domain domain = null;
+            String name = domainObj.getString("name").toLowerCase();
+            String type = domainObj.getString("type");
+            if (type.equals("Federated")) {
+                log.info("Got a Federated domain named {0}", name);
+                domain = new Office365FederatedDomain(name);
+            } else if (type.equals("Managed")) {
+                log.info("Got a Managed domain named {0}", name);
+                domain = new Office365ManagedDomain(name);
+            } else if (type.equals("None")) {
+                log.info("Received a None domain for {0},  skipping", name);
+            } else {
+                log.error("Unrecognised type of {0} passed for domain {1}", type, name);
+                throw new ConnectorException("Unrecognised domain type of " + type + " received for doman " + name);
+            }
+
+            if (domain != null) {
+                domain.initiliseCapability(domainObj.getString("capabilities").split(","));
+                domain.setDefaultDomain(domainObj.getBoolean("default"));
+                domain.setId(domainObj.getString("id"));
+                domain.setInitial(domainObj.getBoolean("initial"));
+                domains.add(domain);
+            }
+        }
+        return domains;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+/**
+ * Query produced by {@link Office365FilterTranslator}, a tree of comparisons
+ * on Graph API properties that compiles to an OData $filter expression.
+ */
+public final class Office365Filter {
+
+    public static final String OBJECT_ID = "objectId";
+
+    enum Operator {
+        EQUALS,
+        ANY_EQUALS, // Equality with one of the values of a multi-valued property
+        STARTS_WITH,
+        AND,
+        OR
+    }
+
+    private final Operator operator;
+    private final String property;
+    private final Object value;
+    private final Office365Filter left;
+    private final Office365Filter right;
+
+    private Office365Filter(Operator operator, String property, Object value, Office365Filter left, Office365Filter right) {
+        this.operator = operator;
+        this.property = property;
+        this.value = value;
+        this.left = left;
+        this.right = right;
+    }
+
+    public static Office365Filter equalTo(String property, Object value) {
+        return new Office365Filter(Operator.EQUALS, property, value, null, null);
+    }
+
+    public static Office365Filter anyEqualTo(String property, Object value) {
+        return new Office365Filter(Operator.ANY_EQUALS, property, value, null, null);
+    }
+
+    public static Office365Filter startsWith(String property, String value) {
+        return new Office365Filter(Operator.STARTS_WITH, property, value, null, null);
+    }
+
+    public static Office365Filter and(Office365Filter left, Office365Filter right) {
+        return new Office365Filter(Operator.AND, null, null, left, right);
+    }
+
+    public static Office365Filter or(Office365Filter left, Office365Filter right) {
+        return new Office365Filter(Operator.OR, null, null, left, right);
+    }
+
+    Operator getOperator() {
+        return this.operator;
+    }
+
+    /**
+     * @return The objectId if the filter selects a single object by it, null otherwise
+     */
+    public String getObjectId() {
+        if (this.operator == Operator.EQUALS && OBJECT_ID.equals(this.property)) {
+            return this.value.toString();
+        }
+        return null;
+    }
+
+    /**
+     * @return The filter as an OData $filter expression, not yet URL encoded
+     */
+    public String toODataFilter() {
+        switch (this.operator) {
+            case EQUALS:
+                return this.property + " eq " + literal(this.value);
+            case ANY_EQUALS:
+                return this.property + "/any(v:v eq " + literal(this.value) + ")";
+            case STARTS_WITH:
+                return "startswith(" + this.property + "," + literal(this.value) + ")";
+            case AND:
+                return "(" + this.left.toODataFilter() + ") and (" + this.right.toODataFilter() + ")";
+            case OR:
+                return "(" + this.left.toODataFilter() + ") or (" + this.right.toODataFilter() + ")";
+            default:
+                throw new IllegalStateException("Unknown operator " + this.operator);
+        }
+    }
+
+    static String literal(Object value) {
+        if (value instanceof Boolean || value instanceof Number) {
+            return value.toString();
+        }
+        // Quotes in OData string literals are escaped by doubling them
+        return "'" + value.toString().replace("'", "''") + "'";
+    }
+
+    @Override
+    public String toString() {
+        return toODataFilter();
+    }
+}
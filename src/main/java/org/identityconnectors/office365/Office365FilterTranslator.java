@@ -23,10 +23,17 @@
  */
 package org.identityconnectors.office365;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.framework.common.objects.Attribute;
-import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
@@ -45,18 +52,35 @@ import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
  * method should return null. This level of filtering is present only to allow any
  * native constructs that may be available to help reduce the result set for the framework,
  * which will (strictly) reapply all filters specified after the connector does the initial
- * filtering.<p><p>Note: The generic query type is most commonly a String, but does not have to be.
+ * filtering.<p><p>Expressions are translated to an {@link Office365Filter}, which is sent
+ * to the Graph API as $filter. Equality on the schema attributes, startswith and
+ * and/or composition are supported, negation and ordering comparisons are not.
  *
  * @author Paul Heaney
  * @version $Revision$ $Date$
  */
-public class Office365FilterTranslator extends AbstractFilterTranslator<String> {
+public class Office365FilterTranslator extends AbstractFilterTranslator<Office365Filter> {
+
+    // Schema attributes which are not properties of the Graph API user
+    private static final Set<String> NOT_FILTERABLE = new HashSet<>(Arrays.asList(
+            OperationalAttributes.PASSWORD_NAME,
+            Office365Connector.LICENSE_ATTR,
+            "forceChangePasswordNextLogin",
+            "thumbnailPhoto"));
+
+    private final Office365Connector connector;
+    private final ObjectClass objectClass;
+
+    public Office365FilterTranslator(Office365Connector connector, ObjectClass objectClass) {
+        this.connector = connector;
+        this.objectClass = objectClass;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createContainsExpression(ContainsFilter filter, boolean not) {
+    protected Office365Filter createContainsExpression(ContainsFilter filter, boolean not) {
         return null;
     }
 
@@ -64,7 +88,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createEndsWithExpression(EndsWithFilter filter, boolean not) {
+    protected Office365Filter createEndsWithExpression(EndsWithFilter filter, boolean not) {
         return null;
     }
 
@@ -72,58 +96,84 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createStartsWithExpression(StartsWithFilter filter, boolean not) {
-        return null;
+    protected Office365Filter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        if (not) {
+            return null;
+        }
+
+        AttributeInfo info = getAttributeInfo(filter.getAttribute());
+        if (info == null || !String.class.equals(info.getType())) {
+            return null;
+        }
+
+        String value = validateSearchValue(filter.getValue());
+        if (value == null) {
+            return null;
+        }
+
+        String property = getProperty(filter.getAttribute());
+        return info.isMultiValued() ? null : Office365Filter.startsWith(property, value);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createEqualsExpression(EqualsFilter filter, boolean not) {
-        // TODO we should probably check this is either a UPN of Uid
+    protected Office365Filter createEqualsExpression(EqualsFilter filter, boolean not) {
         if (not) {
             // We can't search for NotEquals against o365
             return null;
         }
 
         Attribute attr = filter.getAttribute();
-
-        if (!attr.is(Name.NAME) && !attr.is(Uid.NAME)) {
-            // Currently only support searching on UID TODO
+        AttributeInfo info = getAttributeInfo(attr);
+        if (info == null && !attr.is(Uid.NAME)) {
             return null;
         }
 
-        String value = AttributeUtil.getAsStringValue(attr);
+        List<Object> values = attr.getValue();
+        if (values == null || values.size() != 1 || values.get(0) == null) {
+            return null;
+        }
 
-        if (validateSearchValue(value) == null) {
+        Object value = values.get(0);
+        if (value instanceof String) {
+            value = validateSearchValue((String) value);
+            if (value == null) {
+                return null;
+            }
+        } else if (!(value instanceof Boolean) && !(value instanceof Number)) {
             return null;
-        } else {
-            return value;
         }
+
+        String property = getProperty(attr);
+        if (info != null && info.isMultiValued()) {
+            return Office365Filter.anyEqualTo(property, value);
+        }
+        return Office365Filter.equalTo(property, value);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createAndExpression(String leftExpression, String rightExpression) {
-        return null;
+    protected Office365Filter createAndExpression(Office365Filter leftExpression, Office365Filter rightExpression) {
+        return Office365Filter.and(leftExpression, rightExpression);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createOrExpression(String leftExpression, String rightExpression) {
-        return null;
+    protected Office365Filter createOrExpression(Office365Filter leftExpression, Office365Filter rightExpression) {
+        return Office365Filter.or(leftExpression, rightExpression);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+    protected Office365Filter createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
         return null;
     }
 
@@ -131,7 +181,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter,
+    protected Office365Filter createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter,
             boolean not) {
         return null;
     }
@@ -140,7 +190,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createLessThanExpression(LessThanFilter filter, boolean not) {
+    protected Office365Filter createLessThanExpression(LessThanFilter filter, boolean not) {
         return null;
     }
 
@@ -148,19 +198,34 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+    protected Office365Filter createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
         return null;
     }
 
-    private String validateSearchValue(String value) {
-        if (StringUtil.isEmpty(value)) {
+    /**
+     * @return The schema definition of the attribute, null if it can't be filtered on
+     */
+    private AttributeInfo getAttributeInfo(Attribute attr) {
+        if (NOT_FILTERABLE.contains(attr.getName())) {
             return null;
         }
+        return this.connector.getAttributeInfo(this.objectClass.getObjectClassValue(), attr.getName());
+    }
 
-        if (value.contains("*") || value.contains("&")) {
-            throw new IllegalArgumentException("Search value contains illegal character(s)");
+    private static String getProperty(Attribute attr) {
+        if (attr.is(Uid.NAME)) {
+            return Office365Filter.OBJECT_ID;
+        } else if (attr.is(Name.NAME)) {
+            return "userPrincipalName";
         }
+        return attr.getName();
+    }
 
-        return value;
+    /**
+     * @return The value, null if empty. Quotes are escaped by {@link Office365Filter} and the
+     * $filter is URL encoded, so values are otherwise searched for as they are.
+     */
+    private static String validateSearchValue(String value) {
+        return StringUtil.isEmpty(value) ? null : value;
     }
 }
@@ -0,0 +1,284 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pull parser for a page of a Graph API collection such as
+ *
+ * <pre>
+ * { "odata.metadata": "...", "value": [ {...}, {...} ], "odata.nextLink": "..." }
+ * </pre>
+ *
+ * Only one element of the "value" array is materialised as a {@link JSONObject}
+ * at a time, so the memory used does not depend on the size of the page.
+ * Pages of a differential query carry aad.nextLink and aad.deltaLink instead.
+ */
+class Office365JsonPageReader {
+
+    static final String VALUE = "value";
+    static final String NEXT_LINK = "odata.nextLink";
+    static final String AAD_NEXT_LINK = "aad.nextLink";
+    static final String AAD_DELTA_LINK = "aad.deltaLink";
+
+    private static final int NONE = -2;
+
+    private final Reader reader;
+    private int pushedBack = NONE;
+    private int count = 0;
+    private boolean stopped = false;
+    private String nextLink = null;
+    private String deltaLink = null;
+
+    Office365JsonPageReader(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+    }
+
+    /**
+     * Reads the page, handing each element of the "value" array to the handler as soon as it is parsed
+     *
+     * @return The odata.nextLink or aad.nextLink of the page, null if this is the last page or the handler stopped reading
+     */
+    String read(Office365Connection.ObjectHandler handler) throws IOException, JSONException {
+        expect(nextClean(), '{');
+
+        String nextLink = null;
+        int c = nextClean();
+        while (c != '}') {
+            expect(c, '"');
+            String key = readString();
+            expect(nextClean(), ':');
+
+            c = nextClean();
+            if (VALUE.equals(key) && c == '[') {
+                readValues(handler);
+                if (this.stopped) {
+                    return null;
+                }
+            } else if ((NEXT_LINK.equals(key) || AAD_NEXT_LINK.equals(key)) && c == '"') {
+                nextLink = readString();
+            } else if (AAD_DELTA_LINK.equals(key) && c == '"') {
+                this.deltaLink = readString();
+            } else {
+                readValue(c, null);
+            }
+
+            c = nextClean();
+            if (c == ',') {
+                c = nextClean();
+            } else if (c != '}') {
+                throw syntaxError("Expected ',' or '}'", c);
+            }
+        }
+
+        this.nextLink = nextLink;
+        return nextLink;
+    }
+
+    /**
+     * @return The value returned by {@link #read(Office365Connection.ObjectHandler)}
+     */
+    String getNextLink() {
+        return this.nextLink;
+    }
+
+    /**
+     * @return Number of objects handed to the handler
+     */
+    int getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return The aad.deltaLink of the last page of a differential query, null on other pages
+     */
+    String getDeltaLink() {
+        return this.deltaLink;
+    }
+
+    /**
+     * @return true if the handler asked to stop before the end of the page
+     */
+    boolean isStopped() {
+        return this.stopped;
+    }
+
+    private void readValues(Office365Connection.ObjectHandler handler) throws IOException, JSONException {
+        int c = nextClean();
+        if (c == ']') {
+            return;
+        }
+
+        while (true) {
+            StringBuilder sb = new StringBuilder();
+            readValue(c, sb);
+            this.count++;
+            if (!handler.handle(new JSONObject(sb.toString()))) {
+                this.stopped = true;
+                return;
+            }
+
+            c = nextClean();
+            if (c == ']') {
+                return;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or ']'", c);
+            }
+            c = nextClean();
+        }
+    }
+
+    /**
+     * Reads a complete value starting with c, copying its text into sb unless sb is null
+     */
+    private void readValue(int c, StringBuilder sb) throws IOException, JSONException {
+        if (c == '"') {
+            append(sb, c);
+            copyString(sb);
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                if (c == -1) {
+                    throw syntaxError("Unterminated object or array", c);
+                }
+                append(sb, c);
+                if (c == '"') {
+                    copyString(sb);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                if (depth > 0) {
+                    c = read();
+                }
+            } while (depth > 0);
+        } else {
+            // number, true, false or null
+            while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                append(sb, c);
+                c = read();
+            }
+            this.pushedBack = c;
+        }
+    }
+
+    /**
+     * Copies the rest of a string, the opening quote having been read already, including the closing quote
+     */
+    private void copyString(StringBuilder sb) throws IOException, JSONException {
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) {
+                throw syntaxError("Unterminated string", c);
+            }
+            append(sb, c);
+            if (c == '\\') {
+                append(sb, read());
+            }
+        }
+        append(sb, c);
+    }
+
+    /**
+     * Reads the rest of a string, the opening quote having been read already, unescaping it
+     */
+    private String readString() throws IOException, JSONException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) {
+                throw syntaxError("Unterminated string", c);
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) read();
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException nfe) {
+                            throw new JSONException("Illegal escape \\u" + new String(hex));
+                        }
+                        break;
+                    case -1:
+                        throw syntaxError("Unterminated string", c);
+                    default:
+                        sb.append((char) c);
+                }
+            } else {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void append(StringBuilder sb, int c) {
+        if (sb != null && c != -1) {
+            sb.append((char) c);
+        }
+    }
+
+    private int read() throws IOException {
+        if (this.pushedBack != NONE) {
+            int c = this.pushedBack;
+            this.pushedBack = NONE;
+            return c;
+        }
+        return this.reader.read();
+    }
+
+    private int nextClean() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private void expect(int c, char expected) throws JSONException {
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "'", c);
+        }
+    }
+
+    private JSONException syntaxError(String message, int c) {
+        return new JSONException(message + " but found " + (c == -1 ? "end of input" : "'" + (char) c + "'")
+                + " after " + this.count + " object(s)");
+    }
+}
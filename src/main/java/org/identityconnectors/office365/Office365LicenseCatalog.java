@@ -0,0 +1,158 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Snapshot of the licenses (SKUs) subscribed to by a tenancy and their service plans.
+ * <p>
+ * A catalog is never modified once built, a refresh builds a new one, so it can
+ * be read from any number of threads without locking.
+ */
+public final class Office365LicenseCatalog {
+
+    public static final Office365LicenseCatalog EMPTY = new Office365LicenseCatalog(
+            Collections.<String, Office365License>emptyMap(), Collections.<String, String>emptyMap(),
+            Collections.<String, String>emptyMap(), 0);
+
+    private final Map<String, Office365License> licenses;     // license name --> license object
+    private final Map<String, String> licenseNamesBySkuId;     // license sku -> license name
+    private final Map<String, String> servicePlanIDs;          // servicePlanName -> servicePlanId
+    private final long loadedAt;
+    private final ConcurrentMap<String, Office365LicenseDecoder> decoders = new ConcurrentHashMap<>(); // ignoredPlanNames -> decoder
+
+    private Office365LicenseCatalog(Map<String, Office365License> licenses, Map<String, String> licenseNamesBySkuId,
+            Map<String, String> servicePlanIDs, long loadedAt) {
+        this.licenses = licenses;
+        this.licenseNamesBySkuId = licenseNamesBySkuId;
+        this.servicePlanIDs = servicePlanIDs;
+        this.loadedAt = loadedAt;
+    }
+
+    /**
+     * Builds a catalog from the response to GET /subscribedSkus
+     */
+    public static Office365LicenseCatalog fromSubscribedSkus(JSONObject obj) throws JSONException {
+        return fromSubscribedSkus(obj, System.currentTimeMillis());
+    }
+
+    /**
+     * Builds a catalog from a response to GET /subscribedSkus received earlier
+     *
+     * @param loadedAt When the response was received, in milliseconds since the epoch
+     */
+    public static Office365LicenseCatalog fromSubscribedSkus(JSONObject obj, long loadedAt) throws JSONException {
+        Map<String, Office365License> licenses = new HashMap<>();
+        Map<String, String> licenseNamesBySkuId = new HashMap<>();
+        Map<String, String> servicePlanIDs = new HashMap<>();
+
+        JSONArray skus = obj.getJSONArray("value");
+        for (int i = 0; i < skus.length(); i++) {
+            JSONObject sku = skus.getJSONObject(i);
+
+            String skuID = sku.getString("skuId");
+            String skuPartNumber = sku.getString("skuPartNumber");
+
+            licenseNamesBySkuId.put(skuID, skuPartNumber);
+
+            Office365License license = new Office365License(skuID);
+            license.setSkuPartNumber(skuPartNumber);
+            license.setObjectID(sku.getString("objectId"));
+            license.setConsumedUnits(sku.getInt("consumedUnits"));
+            JSONObject prepaidUnits = sku.getJSONObject("prepaidUnits");
+            license.setPrepaidUnitsEnabled(prepaidUnits.getInt("enabled"));
+            license.setPrepaidUnitsSuspended(prepaidUnits.getInt("suspended"));
+            license.setPrepaidUnitsWarning(prepaidUnits.getInt("warning"));
+
+            JSONArray servicePlans = sku.getJSONArray("servicePlans");
+
+            for (int j = 0; j < servicePlans.length(); j++) {
+                JSONObject planObj = servicePlans.getJSONObject(j);
+                String planID = planObj.getString("servicePlanId");
+                String planName = planObj.getString("servicePlanName");
+                Office365ServicePlan plan = new Office365ServicePlan(planID, planName);
+                license.addServicePlan(plan);
+
+                servicePlanIDs.put(planName, planID);
+            }
+
+            licenses.put(skuPartNumber, license);
+        }
+
+        return new Office365LicenseCatalog(Collections.unmodifiableMap(licenses), Collections.unmodifiableMap(licenseNamesBySkuId),
+                Collections.unmodifiableMap(servicePlanIDs), loadedAt);
+    }
+
+    public Office365License getLicense(String licenseName) {
+        return licenseName != null ? this.licenses.get(licenseName) : null;
+    }
+
+    public Office365License getLicenseBySku(String skuID) {
+        return getLicense(this.licenseNamesBySkuId.get(skuID));
+    }
+
+    public String getServicePlanId(String planName) {
+        return this.servicePlanIDs.get(planName);
+    }
+
+    public Map<String, Office365License> getLicenses() {
+        return this.licenses;
+    }
+
+    /**
+     * @return The decoder of assigned licenses for this catalog, built once per set of ignored plans
+     */
+    Office365LicenseDecoder getDecoder(String ignoredPlanNames) {
+        return this.decoders.computeIfAbsent(ignoredPlanNames != null ? ignoredPlanNames : "",
+                names -> new Office365LicenseDecoder(this.licenses.values(), names));
+    }
+
+    public boolean isEmpty() {
+        return this.licenses.isEmpty() || this.servicePlanIDs.isEmpty();
+    }
+
+    /**
+     * @return When the catalog was loaded, in milliseconds since the epoch
+     */
+    public long getLoadedAt() {
+        return this.loadedAt;
+    }
+
+    /**
+     * @return true if the catalog is empty or older than the interval
+     */
+    public boolean isStale(long intervalInMinutes) {
+        return isEmpty() || System.currentTimeMillis() - this.loadedAt > TimeUnit.MINUTES.toMillis(intervalInMinutes);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Turns the assignedLicenses of a user into LICENSE:PLAN:PLAN strings.
+ * <p>
+ * The service plans of each SKU are numbered once, so the disabled plans of an
+ * assigned license become a bitset, and the string for each distinct set of
+ * disabled plans is only built the first time it's seen.
+ */
+final class Office365LicenseDecoder {
+
+    // Bounds the strings remembered per SKU should the combinations of disabled plans be unusually varied
+    private static final int MAX_NAMES_PER_SKU = 1024;
+
+    private final Map<String, SkuTable> tables = new HashMap<>(); // skuId -> table
+
+    Office365LicenseDecoder(Collection<Office365License> licenses, String ignoredPlanNames) {
+        Set<String> ignored = new HashSet<>();
+        if (ignoredPlanNames != null) {
+            for (String name : ignoredPlanNames.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    ignored.add(name.trim());
+                }
+            }
+        }
+
+        for (Office365License license : licenses) {
+            this.tables.put(license.getSkuID(), new SkuTable(license, ignored));
+        }
+    }
+
+    /**
+     * @param skuId The skuId of an assigned license
+     * @param disabledPlans The servicePlanIds disabled on the assigned license
+     * @return The license name, followed by its enabled plans other than the ignored ones if
+     *         any plan is disabled, or null if the SKU isn't known
+     */
+    String decode(String skuId, JSONArray disabledPlans) throws JSONException {
+        SkuTable table = this.tables.get(skuId);
+        if (table == null) {
+            return null;
+        }
+        if (disabledPlans == null || disabledPlans.length() == 0) {
+            return table.skuPartNumber;
+        }
+
+        BitSet disabled = new BitSet(table.planNames.length);
+        for (int i = 0; i < disabledPlans.length(); i++) {
+            Integer bit = table.bits.get(disabledPlans.getString(i));
+            if (bit != null) {
+                disabled.set(bit);
+            }
+        }
+        return table.getName(disabled);
+    }
+
+    private static final class SkuTable {
+        private final String skuPartNumber;
+        private final Map<String, Integer> bits = new HashMap<>(); // servicePlanId -> bit
+        private final String[] planNames;
+        private final BitSet ignored;
+        private final ConcurrentMap<BitSet, String> names = new ConcurrentHashMap<>(); // disabled plans -> name
+
+        private SkuTable(Office365License license, Set<String> ignoredPlanNames) {
+            this.skuPartNumber = license.getSkuPartNumber();
+
+            List<Office365ServicePlan> plans = license.getServicePlans();
+            int count = plans != null ? plans.size() : 0;
+            this.planNames = new String[count];
+            this.ignored = new BitSet(count);
+            for (int i = 0; i < count; i++) {
+                Office365ServicePlan plan = plans.get(i);
+                this.bits.put(plan.getServicePlanID(), i);
+                this.planNames[i] = plan.getServicePlanName();
+                if (ignoredPlanNames.contains(plan.getServicePlanName())) {
+                    this.ignored.set(i);
+                }
+            }
+        }
+
+        private String getName(BitSet disabled) {
+            String name = this.names.get(disabled);
+            if (name == null) {
+                StringBuilder sb = new StringBuilder(this.skuPartNumber);
+                for (int i = 0; i < this.planNames.length; i++) {
+                    if (!disabled.get(i) && !this.ignored.get(i)) {
+                        sb.append(':').append(this.planNames[i]);
+                    }
+                }
+                name = sb.toString();
+                if (this.names.size() < MAX_NAMES_PER_SKU) {
+                    this.names.putIfAbsent(disabled, name);
+                }
+            }
+            return name;
+        }
+    }
+}
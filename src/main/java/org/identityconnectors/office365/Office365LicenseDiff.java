@@ -0,0 +1,112 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Works out the single assignLicense request taking a user from the licenses
+ * it has to those wanted.
+ * <p>
+ * A license the user already has with other disabled plans is simply added
+ * again, which replaces its disabled plans, so changing plans doesn't remove
+ * the license first and never leaves the user without it.
+ */
+final class Office365LicenseDiff {
+
+    private Office365LicenseDiff() {
+    }
+
+    /**
+     * @param assignedLicenses The assignedLicenses of the user
+     * @param licensesToAssign The licenses wanted, each with skuId and disabledPlans
+     * @param skusToRevoke The skuIds of the licenses to remove
+     * @return The assignLicense request, null if the user already has the licenses wanted
+     */
+    static JSONObject diff(JSONArray assignedLicenses, List<JSONObject> licensesToAssign, Collection<String> skusToRevoke)
+            throws JSONException {
+        Map<String, Set<String>> assigned = new HashMap<>(); // skuId -> disabled plans
+        for (int i = 0; i < assignedLicenses.length(); i++) {
+            JSONObject license = assignedLicenses.getJSONObject(i);
+            assigned.put(license.getString("skuId"), getDisabledPlans(license));
+        }
+
+        List<JSONObject> addLicenses = new ArrayList<>();
+        Set<String> added = new HashSet<>();
+        for (JSONObject license : licensesToAssign) {
+            String skuId = license.getString("skuId");
+            added.add(skuId);
+            Set<String> disabledPlans = assigned.get(skuId);
+            if (disabledPlans == null || !disabledPlans.equals(getDisabledPlans(license))) {
+                addLicenses.add(license);
+            }
+        }
+
+        List<String> removeLicenses = new ArrayList<>();
+        for (String skuId : skusToRevoke) {
+            // A SKU can't be both added and removed by the same request
+            if (assigned.containsKey(skuId) && !added.contains(skuId) && !removeLicenses.contains(skuId)) {
+                removeLicenses.add(skuId);
+            }
+        }
+
+        if (addLicenses.isEmpty() && removeLicenses.isEmpty()) {
+            return null;
+        }
+
+        JSONObject request = new JSONObject();
+        if (addLicenses.isEmpty()) {
+            request.put("addLicenses", JSONObject.NULL);
+        } else {
+            request.put("addLicenses", addLicenses);
+        }
+        if (removeLicenses.isEmpty()) {
+            request.put("removeLicenses", JSONObject.NULL);
+        } else {
+            request.put("removeLicenses", removeLicenses);
+        }
+        return request;
+    }
+
+    private static Set<String> getDisabledPlans(JSONObject license) throws JSONException {
+        Set<String> disabledPlans = new HashSet<>();
+        JSONArray plans = license.optJSONArray("disabledPlans");
+        if (plans != null) {
+            for (int i = 0; i < plans.length(); i++) {
+                disabledPlans.add(plans.getString(i).toLowerCase());
+            }
+        }
+        return disabledPlans;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads a whole collection of users as disjoint slices paged concurrently.
+ * <p>
+ * The tenant is split on the first character of userPrincipalName, one slice
+ * per letter and digit plus one for the most common other characters a UPN may
+ * start with. The Graph API cannot filter on the complement of the slices, so
+ * once they have been read the objectIds of the whole collection are listed,
+ * a cheap pass as nothing else is selected, and any object the slices missed,
+ * e.g. a UPN starting with '$' or a non-ASCII letter, is read individually.
+ * <p>
+ * The objects are merged into a single handler, which is never called
+ * concurrently and never sees the same objectId twice. That needs the objectId
+ * of every object read to be held in memory until the scan completes.
+ */
+class Office365PartitionedScan {
+
+    private static final Log log = Log.getLog(Office365PartitionedScan.class);
+
+    private static final String PARTITION_ATTRIBUTE = "userPrincipalName";
+    private static final String OBJECT_ID = "objectId";
+    // Commonest characters other than letters and digits at the start of a user name, the rest are caught by the sweep
+    private static final char[] OTHER_FIRST_CHARS = { '\'', '-', '_', '!', '#', '^', '~' };
+
+    private final Office365Connection connection;
+    private final int pageSize;
+    private final int parallelism;
+
+    Office365PartitionedScan(Office365Connection connection, int pageSize, int parallelism) {
+        this.connection = connection;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Pages every slice of the collection, returning once all slices have been read
+     * or the handler has asked to stop
+     *
+     * @param path Path of the collection including the api-version query parameter
+     * @param budget Retry budget of the operation, shared by all of the slices
+     */
+    void scan(final String path, final Office365RetryPolicy.Budget budget, final Office365Connection.ObjectHandler handler) {
+        List<String> filters = getSliceFilters();
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+        final Object handlerLock = new Object();
+        final boolean[] stopped = { false };
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, filters.size()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "office365-scan-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        log.info("Scanning {0} in {1} slices with parallelism {2}", path, filters.size(), this.parallelism);
+        try {
+            List<Future<?>> slices = new ArrayList<>();
+            for (final String filter : filters) {
+                slices.add(executor.submit(() -> {
+                    this.connection.getPagedRequest(path + "&$filter=" + Office365Utils.encodeQueryValue(filter), this.pageSize, budget, obj -> {
+                        if (!seen.add(getObjectId(obj))) {
+                            return !isStopped(handlerLock, stopped);
+                        }
+                        synchronized (handlerLock) {
+                            if (stopped[0]) {
+                                return false;
+                            }
+                            if (!handler.handle(obj)) {
+                                stopped[0] = true;
+                                return false;
+                            }
+                            return true;
+                        }
+                    });
+                }));
+            }
+
+            for (Future<?> slice : slices) {
+                slice.get();
+            }
+
+            if (!stopped[0]) {
+                sweep(path, seen, budget, handler);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted whilst scanning " + path, ie);
+        } catch (ExecutionException ee) {
+            log.error(ee.getCause(), "Error scanning {0}", path);
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new ConnectorException("Error scanning " + path, ee.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("Scanned {0} object(s) of {1}", seen.size(), path);
+    }
+
+    /**
+     * Hands the handler the objects of the collection which none of the slices returned
+     */
+    private void sweep(String path, Set<String> seen, Office365RetryPolicy.Budget budget, Office365Connection.ObjectHandler handler) {
+        int query = path.indexOf('?');
+        String collection = path.substring(0, query);
+        String parameters = path.substring(query);
+
+        final List<String> missed = new ArrayList<>();
+        this.connection.getPagedRequest(collection + "?api-version=" + Office365Connection.API_VERSION + "&$select=" + OBJECT_ID,
+                Office365Connection.MAX_PAGE_SIZE, budget, obj -> {
+                    String objectId = getObjectId(obj);
+                    if (!seen.contains(objectId)) {
+                        missed.add(objectId);
+                    }
+                    return true;
+                });
+
+        log.info("Sweep of {0} found {1} object(s) outside the slices", path, missed.size());
+        for (String objectId : missed) {
+            // Deleted since it was listed if not found
+            JSONObject obj = this.connection.getRequestIfFound(collection + "/" + objectId + parameters, budget);
+            if (obj == null || !seen.add(objectId)) {
+                continue;
+            }
+            try {
+                if (!handler.handle(obj)) {
+                    return;
+                }
+            } catch (JSONException je) {
+                throw new ConnectorException("Error handling " + objectId + " of " + path, je);
+            }
+        }
+    }
+
+    /**
+     * @return The $filter of each slice, together covering every valid user name
+     */
+    static List<String> getSliceFilters() {
+        List<String> filters = new ArrayList<>();
+        // startswith is case insensitive, so one slice per letter covers both cases
+        for (char c = 'a'; c <= 'z'; c++) {
+            filters.add(startsWith(c));
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            filters.add(startsWith(c));
+        }
+
+        Office365Filter catchAll = null;
+        for (char c : OTHER_FIRST_CHARS) {
+            Office365Filter filter = Office365Filter.startsWith(PARTITION_ATTRIBUTE, String.valueOf(c));
+            catchAll = catchAll == null ? filter : Office365Filter.or(catchAll, filter);
+        }
+        filters.add(catchAll.toODataFilter());
+        return filters;
+    }
+
+    private static String startsWith(char c) {
+        return Office365Filter.startsWith(PARTITION_ATTRIBUTE, String.valueOf(c)).toODataFilter();
+    }
+
+    private static boolean isStopped(Object handlerLock, boolean[] stopped) {
+        synchronized (handlerLock) {
+            return stopped[0];
+        }
+    }
+
+    private static String getObjectId(JSONObject obj) throws JSONException {
+        return obj.getString(OBJECT_ID);
+    }
+}
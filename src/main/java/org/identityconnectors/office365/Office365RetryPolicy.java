@@ -0,0 +1,145 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.client.utils.DateUtils;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Decides which Graph API failures are worth retrying and how long to wait
+ * before doing so.
+ * <p>
+ * Throttling (429) and unavailability (503, 504) are transient, everything
+ * else is returned to the caller straight away. The server's Retry-After is
+ * honoured when present, otherwise an exponential backoff with jitter is used.
+ * Each operation gets a {@link Budget} limiting both the number of retries and
+ * the total time spent waiting, so a throttling storm doesn't turn into a retry storm.
+ */
+public class Office365RetryPolicy {
+
+    private static final Log log = Log.getLog(Office365RetryPolicy.class);
+
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+    static final long BASE_DELAY_MILLIS = 500;
+    static final long MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final int maxRetries;
+    private final long budgetMillis;
+
+    public Office365RetryPolicy(int maxRetries, long budgetMillis) {
+        this.maxRetries = maxRetries;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * @return true if the status code indicates a transient failure
+     */
+    public static boolean isTransient(int statusCode) {
+        return statusCode == SC_TOO_MANY_REQUESTS || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * @return A new retry budget for one operation
+     */
+    public Budget newBudget() {
+        return new Budget();
+    }
+
+    /**
+     * Parses a Retry-After header, either delta-seconds or an HTTP-date
+     *
+     * @return The delay in milliseconds, -1 if the header is absent or invalid
+     */
+    static long parseRetryAfter(Header retryAfter) {
+        if (retryAfter == null || retryAfter.getValue() == null) {
+            return -1;
+        }
+
+        String value = retryAfter.getValue().trim();
+        try {
+            return Math.max(TimeUnit.SECONDS.toMillis(Long.parseLong(value)), 0);
+        } catch (NumberFormatException nfe) {
+            Date date = DateUtils.parseDate(value);
+            if (date != null) {
+                return Math.max(date.getTime() - System.currentTimeMillis(), 0);
+            }
+        }
+
+        log.info("Ignoring invalid Retry-After value {0}", value);
+        return -1;
+    }
+
+    /**
+     * Exponential backoff with equal jitter, half of the delay is fixed and half random
+     */
+    static long backoff(int retry) {
+        long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(retry, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Retries left for a single operation, shared by all of its requests,
+     * which may run on several threads
+     */
+    public class Budget {
+
+        private int retries = 0;
+        private long waited = 0;
+
+        /**
+         * Consumes one retry
+         *
+         * @param retryAfter The Retry-After header of the failed response, may be null
+         * @return How long to wait before retrying, -1 if the budget is exhausted
+         */
+        public synchronized long nextDelay(Header retryAfter) {
+            if (this.retries >= maxRetries) {
+                return -1;
+            }
+
+            long delay = parseRetryAfter(retryAfter);
+            if (delay < 0) {
+                delay = backoff(this.retries);
+            }
+
+            if (this.waited + delay > budgetMillis) {
+                log.info("Waiting {0} ms would exceed the retry budget of {1} ms", delay, budgetMillis);
+                return -1;
+            }
+
+            this.retries++;
+            this.waited += delay;
+            return delay;
+        }
+
+        public synchronized int getRetries() {
+            return this.retries;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.identityconnectors.framework.common.objects.AttributeInfo;
+import org.identityconnectors.framework.common.objects.ObjectClassInfo;
+import org.identityconnectors.framework.common.objects.Schema;
+
+/**
+ * The attribute definitions of a {@link Schema} keyed on object class and attribute
+ * name, so converting an attribute doesn't scan the object class definition.
+ * <p>
+ * The index is not modified once built, so it can be read concurrently.
+ */
+final class Office365SchemaIndex {
+
+    private final Map<String, Map<String, AttributeInfo>> attributes; // object class -> attribute name -> definition
+
+    Office365SchemaIndex(Schema schema) {
+        Map<String, Map<String, AttributeInfo>> index = new HashMap<>();
+        for (ObjectClassInfo oci : schema.getObjectClassInfo()) {
+            Map<String, AttributeInfo> byName = new HashMap<>();
+            for (AttributeInfo ai : oci.getAttributeInfo()) {
+                byName.put(ai.getName(), ai);
+            }
+            index.put(oci.getType(), Collections.unmodifiableMap(byName));
+        }
+        this.attributes = Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * @return The definition of the attribute, null if the object class or attribute is not in the schema
+     */
+    AttributeInfo getAttributeInfo(String objectClass, String attrName) {
+        Map<String, AttributeInfo> byName = this.attributes.get(objectClass);
+        return byName != null ? byName.get(attrName) : null;
+    }
+
+    boolean isMultiValued(String objectClass, String attrName) {
+        AttributeInfo ai = getAttributeInfo(objectClass, attrName);
+        return ai != null && ai.isMultiValued();
+    }
+
+    /**
+     * @return The Java type of the attribute's values, null if it is not in the schema
+     */
+    Class<?> getType(String objectClass, String attrName) {
+        AttributeInfo ai = getAttributeInfo(objectClass, attrName);
+        return ai != null ? ai.getType() : null;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Local copy of the /subscribedSkus and /tenantDetails responses of a tenancy,
+ * so that after a restart the license catalog and verified domains are known
+ * before the Graph API has been called.
+ * <p>
+ * The file holds the responses as received, each with when it was saved, along
+ * with a format version. It is rewritten, by replacing it, each time either is reloaded.
+ * A file which can't be read or is of another version is ignored.
+ */
+class Office365Snapshot {
+
+    private static final Log log = Log.getLog(Office365Snapshot.class);
+
+    static final int VERSION = 2;
+
+    private static final ConcurrentMap<Path, Office365Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private boolean loaded = false;
+    private JSONObject subscribedSkus = null;
+    private long subscribedSkusSavedAt = 0;
+    private JSONObject tenantDetails = null;
+    private long tenantDetailsSavedAt = 0;
+
+    private Office365Snapshot(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The snapshot of the tenancy in the directory, shared by every connection using the same file
+     */
+    static Office365Snapshot forTenancy(String directory, String tenancy) {
+        Path file = Paths.get(directory, getFileName(tenancy)).toAbsolutePath().normalize();
+        return snapshots.computeIfAbsent(file, Office365Snapshot::new);
+    }
+
+    static String getFileName(String tenancy) {
+        return "office365-" + tenancy.toLowerCase().replaceAll("[^a-z0-9._-]", "_") + ".json";
+    }
+
+    /**
+     * Reads the file unless already read
+     *
+     * @return true if the snapshot holds any data
+     */
+    synchronized boolean load() {
+        if (!this.loaded) {
+            this.loaded = true;
+            if (!Files.isRegularFile(this.file)) {
+                log.info("No snapshot at {0}", this.file);
+            } else {
+                try {
+                    read(new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8));
+                    log.info("Loaded snapshot from {0}, licenses saved at {1}, domains saved at {2}", this.file,
+                            this.subscribedSkusSavedAt, this.tenantDetailsSavedAt);
+                } catch (IOException | JSONException e) {
+                    log.error(e, "Ignoring unreadable snapshot {0}", this.file);
+                }
+            }
+        }
+        return this.subscribedSkus != null || this.tenantDetails != null;
+    }
+
+    synchronized void read(String content) throws JSONException {
+        JSONObject obj = new JSONObject(content);
+        int version = obj.optInt("version", 0);
+        if (version != VERSION) {
+            log.info("Ignoring snapshot {0} of version {1}", this.file, version);
+            return;
+        }
+        this.subscribedSkus = obj.optJSONObject("subscribedSkus");
+        this.subscribedSkusSavedAt = obj.optLong("subscribedSkusSavedAt", 0);
+        this.tenantDetails = obj.optJSONObject("tenantDetails");
+        this.tenantDetailsSavedAt = obj.optLong("tenantDetailsSavedAt", 0);
+    }
+
+    synchronized String write() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("version", VERSION);
+        if (this.subscribedSkus != null) {
+            obj.put("subscribedSkus", this.subscribedSkus);
+            obj.put("subscribedSkusSavedAt", this.subscribedSkusSavedAt);
+        }
+        if (this.tenantDetails != null) {
+            obj.put("tenantDetails", this.tenantDetails);
+            obj.put("tenantDetailsSavedAt", this.tenantDetailsSavedAt);
+        }
+        return obj.toString();
+    }
+
+    /**
+     * @return When the /subscribedSkus response was saved, in milliseconds since the epoch
+     */
+    synchronized long getSubscribedSkusSavedAt() {
+        return this.subscribedSkusSavedAt;
+    }
+
+    /**
+     * @return When the /tenantDetails response was saved, in milliseconds since the epoch
+     */
+    synchronized long getTenantDetailsSavedAt() {
+        return this.tenantDetailsSavedAt;
+    }
+
+    synchronized JSONObject getSubscribedSkus() {
+        return this.subscribedSkus;
+    }
+
+    synchronized JSONObject getTenantDetails() {
+        return this.tenantDetails;
+    }
+
+    synchronized void saveSubscribedSkus(JSONObject subscribedSkus) {
+        this.subscribedSkus = subscribedSkus;
+        this.subscribedSkusSavedAt = System.currentTimeMillis();
+        save();
+    }
+
+    synchronized void saveTenantDetails(JSONObject tenantDetails) {
+        this.tenantDetails = tenantDetails;
+        this.tenantDetailsSavedAt = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * Replaces the file, a failure is logged as the snapshot is only an optimisation
+     */
+    private void save() {
+        this.loaded = true;
+        try {
+            Files.createDirectories(this.file.getParent());
+            Path tmp = Files.createTempFile(this.file.getParent(), this.file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tmp, write().getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(tmp, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            log.info("Saved snapshot {0}", this.file);
+        } catch (IOException | JSONException e) {
+            log.error(e, "Error saving snapshot {0}", this.file);
+        }
+    }
+}
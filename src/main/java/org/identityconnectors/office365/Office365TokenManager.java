@@ -0,0 +1,188 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Keeps the access token of a connection valid.
+ * <p>
+ * The token is renewed in the background shortly before it expires, and
+ * when a caller does find it expired all concurrent callers wait on a single
+ * call to {@link Office365Connection#createToken(Office365Configuration)}.
+ */
+public class Office365TokenManager {
+
+    private static final Log log = Log.getLog(Office365TokenManager.class);
+
+    public static final int TOKEN_VALIDITY_SECONDS = 60 * 60; // Validity requested in the JsonWebToken assertion
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1); // Allow for clock skew
+    private static final long REFRESH_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Office365Configuration configuration;
+    private final ScheduledExecutorService refresher;
+
+    private volatile String token = null;
+    private volatile long expiresAt = 0;
+    private FutureTask<String> inFlight = null;
+    private ScheduledFuture<?> scheduledRefresh = null;
+
+    public Office365TokenManager(Office365Configuration configuration) {
+        this.configuration = configuration;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "office365-token-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return A valid token, obtaining a new one if needed. null if no token could be obtained
+     */
+    public String getToken() {
+        String current = this.token;
+        if (current != null && System.currentTimeMillis() < this.expiresAt) {
+            return current;
+        }
+
+        log.info("No currently valid token attempting to retrieve");
+        return refresh();
+    }
+
+    /**
+     * Drop the current token, the next call to {@link #getToken()} obtains a new one
+     */
+    public void invalidate() {
+        log.info("Token invalidated");
+        this.token = null;
+    }
+
+    /**
+     * @return true if a token is held and has not expired
+     */
+    public boolean isValid() {
+        return this.token != null && System.currentTimeMillis() < this.expiresAt;
+    }
+
+    /**
+     * @return When the current token expires, in milliseconds since the epoch
+     */
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    public void dispose() {
+        this.refresher.shutdownNow();
+    }
+
+    /**
+     * Obtains a new token, joining the call already in flight if there is one
+     */
+    private String refresh() {
+        FutureTask<String> task;
+        boolean owner = false;
+
+        synchronized (this) {
+            if (this.inFlight == null) {
+                this.inFlight = new FutureTask<>(this::createToken);
+                owner = true;
+            }
+            task = this.inFlight;
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    this.inFlight = null;
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted whilst waiting for a token", ie);
+        } catch (ExecutionException ee) {
+            throw new ConnectorException("Error creating token", ee.getCause());
+        }
+    }
+
+    private String createToken() {
+        int count = 0;
+        while (count < Office365Configuration.MAX_RECONNECT_ATTEMPTS) {
+            long issuedAt = System.currentTimeMillis();
+            String newToken = Office365Connection.createToken(this.configuration);
+            if (newToken != null) {
+                this.expiresAt = issuedAt + TimeUnit.SECONDS.toMillis(TOKEN_VALIDITY_SECONDS) - EXPIRY_MARGIN_MILLIS;
+                this.token = newToken;
+                scheduleRefresh(issuedAt);
+                return newToken;
+            } else {
+                log.info("Failed to get token, attempting againt, request {0} of {1}", count, Office365Configuration.MAX_RECONNECT_ATTEMPTS);
+            }
+            count++;
+        }
+
+        log.error("Unable to obtain a token after {0} attempts", Office365Configuration.MAX_RECONNECT_ATTEMPTS);
+        return null;
+    }
+
+    private synchronized void scheduleRefresh(long issuedAt) {
+        if (this.scheduledRefresh != null) {
+            this.scheduledRefresh.cancel(false);
+        }
+
+        long delay = issuedAt + TimeUnit.SECONDS.toMillis(TOKEN_VALIDITY_SECONDS) - REFRESH_AHEAD_MILLIS - System.currentTimeMillis();
+        log.info("Scheduling token refresh in {0} ms", delay);
+        if (!this.refresher.isShutdown()) {
+            this.scheduledRefresh = this.refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    log.info("Refreshing token ahead of expiry");
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        // The current token stays in use until it expires
+                        log.error(e, "Background token refresh failed");
+                    }
+                }
+            }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The licenses assigned to recently seen users, so a license change on a user
+ * just read or written doesn't need to GET the user first.
+ * <p>
+ * Entries come from searches and successful license assignments. The least
+ * recently used entry is evicted once the cache is full, and an entry older than
+ * the timeout is never returned. A user is forgotten whenever a write to it fails.
+ */
+class Office365UserCache {
+
+    private final int maxSize;
+    private final long timeoutMillis;
+    private final Map<String, Entry> entries; // objectId -> assigned licenses
+
+    Office365UserCache(final int maxSize, long timeoutMillis) {
+        this.maxSize = maxSize;
+        this.timeoutMillis = timeoutMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return this.maxSize > 0 && this.timeoutMillis > 0;
+    }
+
+    /**
+     * @return The assignedLicenses of the user, null if not cached or too old
+     */
+    synchronized JSONArray getAssignedLicenses(String objectId) {
+        Entry entry = this.entries.get(objectId);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.cachedAt > this.timeoutMillis) {
+            this.entries.remove(objectId);
+            return null;
+        }
+        return entry.assignedLicenses;
+    }
+
+    /**
+     * Remembers the licenses of a user read from the Graph API, if it was read with them
+     */
+    void putUser(JSONObject user) {
+        if (user == null) {
+            return;
+        }
+        JSONArray assignedLicenses = user.optJSONArray("assignedLicenses");
+        String objectId = user.optString("objectId", null);
+        if (assignedLicenses != null && objectId != null) {
+            putAssignedLicenses(objectId, assignedLicenses);
+        }
+    }
+
+    synchronized void putAssignedLicenses(String objectId, JSONArray assignedLicenses) {
+        if (isEnabled()) {
+            this.entries.put(objectId, new Entry(assignedLicenses));
+        }
+    }
+
+    /**
+     * Applies a successful assignLicense request to the cached licenses of the user, if any
+     */
+    synchronized void applyAssignment(String objectId, JSONObject request) throws JSONException {
+        JSONArray current = getAssignedLicenses(objectId);
+        if (current != null) {
+            this.entries.put(objectId, new Entry(applyAssignment(current, request)));
+        }
+    }
+
+    synchronized void invalidate(String objectId) {
+        this.entries.remove(objectId);
+    }
+
+    synchronized void clear() {
+        this.entries.clear();
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return The licenses assigned once the request is applied, those removed or added
+     *         replace any existing assignment of the same SKU
+     */
+    static JSONArray applyAssignment(JSONArray current, JSONObject request) throws JSONException {
+        Set<String> replaced = new HashSet<>();
+        JSONArray removeLicenses = request.optJSONArray("removeLicenses");
+        if (removeLicenses != null) {
+            for (int i = 0; i < removeLicenses.length(); i++) {
+                replaced.add(removeLicenses.getString(i));
+            }
+        }
+        JSONArray addLicenses = request.optJSONArray("addLicenses");
+        if (addLicenses != null) {
+            for (int i = 0; i < addLicenses.length(); i++) {
+                replaced.add(addLicenses.getJSONObject(i).getString("skuId"));
+            }
+        }
+
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < current.length(); i++) {
+            JSONObject license = current.getJSONObject(i);
+            if (!replaced.contains(license.getString("skuId"))) {
+                result.put(license);
+            }
+        }
+        if (addLicenses != null) {
+            for (int i = 0; i < addLicenses.length(); i++) {
+                result.put(addLicenses.getJSONObject(i));
+            }
+        }
+        return result;
+    }
+
+    private static final class Entry {
+        private final JSONArray assignedLicenses;
+        private final long cachedAt = System.currentTimeMillis();
+
+        private Entry(JSONArray assignedLicenses) {
+            this.assignedLicenses = assignedLicenses;
+        }
+    }
+}
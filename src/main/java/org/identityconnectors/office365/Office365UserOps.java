@@ -25,12 +25,17 @@ package org.identityconnectors.office365;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -40,6 +45,8 @@ import org.identityconnectors.framework.common.exceptions.AlreadyExistsException
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
 import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
@@ -48,7 +55,13 @@ import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -63,6 +76,22 @@ public class Office365UserOps {
 	private Office365Connector connector;
 	private static final Log log = Log.getLog(Office365UserOps.class);
 	private static final String NAME_ATTRIBUTE = "userPrincipalName";
+	// Differential query is only available on directoryObjects with this API version
+	private static final String DELTA_PATH = "/directoryObjects?api-version=" + Office365Connection.API_VERSION
+			+ "&$filter=" + Office365Utils.encodeQueryValue("isof('Microsoft.WindowsAzure.ActiveDirectory.User')");
+	// Token of a differential query returning every user
+	private static final String INITIAL_DELTA_TOKEN = "";
+	// Always selected, makeConnectorObject needs them whatever the attributes to get
+	private static final String[] REQUIRED_PROPERTIES = { "objectId", "objectType", NAME_ATTRIBUTE };
+	// Attributes which are not user properties of the same name, null when they can't be read
+	private static final Map<String, String> SELECTED_PROPERTIES = new HashMap<>();
+	static {
+		SELECTED_PROPERTIES.put(Uid.NAME, "objectId");
+		SELECTED_PROPERTIES.put(Name.NAME, NAME_ATTRIBUTE);
+		SELECTED_PROPERTIES.put(Office365Connector.LICENSE_ATTR, "assignedLicenses");
+		SELECTED_PROPERTIES.put(OperationalAttributes.PASSWORD_NAME, null);
+		SELECTED_PROPERTIES.put("forceChangePasswordNextLogin", null);
+	}
 
 	public Office365UserOps(Office365Connector connector) {
 		this.connector = connector;
@@ -72,7 +101,150 @@ public class Office365UserOps {
 		log.info("Entered createUser");
 
 		Uid uid = null;
+		CreateRequest request = buildCreateRequest(name, createAttributes);
+
+		log.info("About to create account using JSON {0}", request.json.toString());
+
+		// One retry budget for the create and the license assignment
+		Office365RetryPolicy.Budget budget = connector.getConnection().newRetryBudget();
+		CompletableFuture<Uid> created = connector.getConnection().postRequestAsync("/users?api-version=" + Office365Connection.API_VERSION, request.json, budget);
+
+		// Resolve the licenses against the catalog whilst the create is in flight
+		List<JSONObject> licenses = null;
+		RuntimeException licenseError = null;
+		try {
+			licenses = getLicensesToAssign(name, request);
+		} catch (RuntimeException e) {
+			licenseError = e;
+		}
 
+		try {
+			uid = created.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof Office365Exception) {
+				// Verify error if user Exist
+				if (isAlreadyExists((Office365Exception) cause)) {
+					log.error("User Already exists {0}", name.getNameValue());
+					throw new AlreadyExistsException(cause.getMessage(), cause);
+				}
+			} else if (cause instanceof ConnectorException) {
+				log.error(cause, "Error creating user {0}", name);
+				log.error("Reason: {0}", cause.getMessage());
+				log.error("Localized Message: {0}", cause.getLocalizedMessage());
+			} else {
+				throw e;
+			}
+		}
+
+		log.ok("Created account {0} successfully", name);
+
+		if (uid != null && licenseError != null) {
+			log.error(licenseError, "Error assigning new license(s).");
+			throw new ConnectorException("Error assigning new license(s). ", licenseError);
+		}
+
+		if (uid != null && licenses != null) {
+			log.info("Licenses to apply to newly created account");
+			try {
+				this.connector.getConnection().licenseAssignmentRequest(uid, buildNewUserAssignRequest(uid, licenses), budget);
+			} catch (Exception e) {
+				log.error(e, "Error assigning new license(s).");
+				throw new ConnectorException("Error assigning new license(s). ", e);
+			}
+		}
+
+		return uid;
+	}
+
+	/**
+	 * Non blocking variant of {@link #createUser(Name, Set)}, the licenses are
+	 * assigned once the create request completes without holding a thread in between.
+	 * Unlike createUser a failed create completes the future exceptionally.
+	 */
+	public CompletableFuture<Uid> createUserAsync(Name name, final Set<Attribute> createAttributes) {
+		log.info("Entered createUserAsync");
+
+		CreateRequest request = buildCreateRequest(name, createAttributes);
+
+		log.info("About to create account using JSON {0}", request.json.toString());
+
+		final Office365RetryPolicy.Budget budget = connector.getConnection().newRetryBudget();
+		CompletableFuture<Uid> created = connector.getConnection().postRequestAsync("/users?api-version=" + Office365Connection.API_VERSION, request.json, budget)
+				.handle((uid, e) -> {
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					if (cause instanceof Office365Exception && isAlreadyExists((Office365Exception) cause)) {
+						log.error("User Already exists {0}", name.getNameValue());
+						throw new AlreadyExistsException(cause.getMessage(), cause);
+					} else if (cause != null) {
+						log.error(cause, "Error creating user {0}", name);
+						throw cause instanceof RuntimeException ? (RuntimeException) cause : new ConnectorException(cause);
+					}
+					log.ok("Created account {0} successfully", name);
+					return uid;
+				});
+
+		// Resolve the licenses against the catalog whilst the create is in flight
+		final List<JSONObject> licenses;
+		try {
+			licenses = getLicensesToAssign(name, request);
+		} catch (RuntimeException e) {
+			return created.thenApply(uid -> {
+				log.error(e, "Error assigning new license(s).");
+				throw new ConnectorException("Error assigning new license(s). ", e);
+			});
+		}
+
+		if (licenses == null) {
+			return created;
+		}
+
+		return created.thenCompose(uid -> {
+			log.info("Licenses to apply to newly created account {0}", uid.getUidValue());
+			JSONObject assignRequest;
+			try {
+				assignRequest = buildNewUserAssignRequest(uid, licenses);
+			} catch (JSONException je) {
+				log.error(je, "Error assigning new license(s).");
+				throw new ConnectorException("Error assigning new license(s). ", je);
+			}
+			return this.connector.getConnection().licenseAssignmentRequestAsync(uid, assignRequest, budget).thenApply(v -> uid);
+		});
+	}
+
+	/**
+	 * @return The licenses to assign to the user being created, null if there are none or they can't be assigned
+	 */
+	private List<JSONObject> getLicensesToAssign(Name name, CreateRequest request) {
+		if (request.licenses.size() == 0) {
+			return null;
+		}
+		if (!request.usageLocationSet) {
+			log.error("Usage Location not set on {0} unable to set license", name.getNameValue());
+			return null;
+		}
+		log.info("Usage location was set so we can assign license");
+		return parseLicenses(request.licenses);
+	}
+
+	/**
+	 * A user just created has no licenses, so unlike {@link #assignLicenses(Uid, List)}
+	 * there's no need to read it first
+	 */
+	private JSONObject buildNewUserAssignRequest(Uid uid, List<JSONObject> licenses) throws JSONException {
+		JSONArray noLicenses = new JSONArray();
+		this.connector.getConnection().getUserCache().putAssignedLicenses(uid.getUidValue(), noLicenses);
+		return buildAssignRequest(uid, noLicenses, licenses);
+	}
+
+	private static boolean isAlreadyExists(Office365Exception oe) {
+		return oe.getErrorCode().equals(400) && oe.getErrorMessage().contains("Another object with the same value for property userPrincipalName already exists.");
+	}
+
+	/**
+	 * Validates the attributes of a new user and converts them to the body of the create request
+	 */
+	private CreateRequest buildCreateRequest(Name name, final Set<Attribute> createAttributes) {
 		if (createAttributes == null || createAttributes.size() == 0) {
 			log.error("Attributes to create is empty");
 			throw new IllegalArgumentException("Attributes to create are empty");
@@ -110,8 +282,6 @@ public class Office365UserOps {
 				password = this.returnPassword(AttributeUtil.getGuardedStringValue(attr));
 			} else if (attr.getName().equals("forceChangePasswordNextLogin")) {
 				forceChangePasswordNextLogin = AttributeUtil.getBooleanValue(attr);
-			} else if (attr.getName().equals("accountEnabled")) {
-				value = new Boolean(AttributeUtil.getSingleValue(attr).toString());
 			} else if (attr.getName().equals(Name.NAME)) {
 				attrName = NAME_ATTRIBUTE;
 				value = name.getNameValue().toString();
@@ -129,7 +299,7 @@ public class Office365UserOps {
 				if (this.connector.isAttributeMultiValues(ObjectClass.ACCOUNT_NAME, attrName)) {
 					value = attr.getValue();
 				} else {
-					value = AttributeUtil.getSingleValue(attr);
+					value = toSchemaType(this.connector.getAttributeType(ObjectClass.ACCOUNT_NAME, attrName), AttributeUtil.getSingleValue(attr));
 				}
 			}
 
@@ -162,38 +332,22 @@ public class Office365UserOps {
 			}
 		}
 
-		log.info("About to create account using JSON {0}", jsonCreate.toString());
-
-		try {
-            uid = connector.getConnection().postRequest("/users?api-version=" + Office365Connection.API_VERSION, jsonCreate);            
-        } 
-        catch(Office365Exception oe)
-        {
-			// Verify error if user Exist
-        	if(oe.getErrorCode().equals(400) && oe.getErrorMessage().contains("Another object with the same value for property userPrincipalName already exists.")){
-				log.error("User Already exists {0}", name.getNameValue());
-				throw new AlreadyExistsException(oe.getMessage(), oe);
-			}
-		} catch (ConnectorException ce) {
-			log.error(ce, "Error creating user {0}", name);
-			log.error("Reason: {0}", ce.getMessage());
-			log.error("Localized Message: {0}", ce.getLocalizedMessage());
-		}
-
-		log.ok("Created account {0} successfully", name);
-
-		if (uid != null && licenses.size() > 0) {
-			log.info("Licenses to apply to newly created account");
+		return new CreateRequest(jsonCreate, licenses, usageLocationSet);
+	}
 
-			if (usageLocationSet) {
-				log.info("Usage location was set so we can assign license");
-				assignLicenses(uid, licenses);
-			} else {
-				log.error("Usage Location not set on {0} unable to set license", uid.getUidValue());
-			}
+	/**
+	 * Body of a create request along with the licenses to assign once the user exists
+	 */
+	private static class CreateRequest {
+		private final JSONObject json;
+		private final List<String> licenses;
+		private final boolean usageLocationSet;
+
+		private CreateRequest(JSONObject json, List<String> licenses, boolean usageLocationSet) {
+			this.json = json;
+			this.licenses = licenses;
+			this.usageLocationSet = usageLocationSet;
 		}
-
-		return uid;
 	}
 
 	public Uid updateUser(Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
@@ -214,6 +368,24 @@ public class Office365UserOps {
 
 		log.ok("UID of {0} is present", uid.getUidValue());
 
+		JSONObject jsonModify = buildModifyRequest(replaceAttributes);
+
+		log.info("About to modify account using JSON {0}", jsonModify.toString());
+
+		try {
+			this.connector.getConnection().patchObjectCoalesced(
+					"/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, jsonModify);
+		} catch (ConnectorException ce) {
+			log.error(ce, "Error modifying user {0}", uid.getUidValue());
+		}
+
+		return uid;
+	}
+
+	/**
+	 * @return The body of the PATCH replacing the attributes, licenses excluded
+	 */
+	private JSONObject buildModifyRequest(Set<Attribute> replaceAttributes) {
 		JSONObject jsonModify = new JSONObject();
 
 		String password = null;
@@ -239,7 +411,7 @@ public class Office365UserOps {
 				if (this.connector.isAttributeMultiValues(ObjectClass.ACCOUNT_NAME, attrName)) {
 					value = attr.getValue();
 				} else {
-					value = AttributeUtil.getSingleValue(attr);
+					value = toSchemaType(this.connector.getAttributeType(ObjectClass.ACCOUNT_NAME, attr.getName()), AttributeUtil.getSingleValue(attr));
 				}
 			}
 
@@ -278,16 +450,216 @@ public class Office365UserOps {
 			}
 		}
 
-		log.info("About to modify account using JSON {0}", jsonModify.toString());
+		return jsonModify;
+	}
+
+	/**
+	 * Applies the modifications, sending only the properties whose values change and
+	 * no PATCH at all if none do. The licenses are changed with a single diffed
+	 * assignLicense request, or none.
+	 *
+	 * @return The modifications which changed the user, as the values replaced
+	 * @throws ConnectorException If the PATCH or the license assignment fails
+	 */
+	public Set<AttributeDelta> updateUserDelta(Uid uid, Set<AttributeDelta> modifications, OperationOptions options) {
+		log.info("Entered updateUserDelta");
+
+		if (uid == null || (uid.getUidValue() == null)) {
+			log.error("No UID specified for update");
+			throw new IllegalArgumentException("No UID specified for update");
+		}
+
+		Set<AttributeDelta> changed = new HashSet<>();
+		List<AttributeDelta> propertyDeltas = new ArrayList<>();
+		AttributeDelta licenseDelta = null;
+		for (AttributeDelta delta : modifications) {
+			if (delta.is(Office365Connector.LICENSE_ATTR)) {
+				licenseDelta = delta;
+			} else {
+				propertyDeltas.add(delta);
+			}
+		}
+
+		if (!propertyDeltas.isEmpty()) {
+			Set<Attribute> replaceAttributes = diffProperties(uid, propertyDeltas);
+			if (replaceAttributes.isEmpty()) {
+				log.info("User {0} already has the values requested, not modifying it", uid.getUidValue());
+			} else {
+				// Unlike updateUser a failed PATCH is not swallowed, the user has not changed
+				JSONObject jsonModify = buildModifyRequest(replaceAttributes);
+				log.info("About to modify account using JSON {0}", jsonModify.toString());
+				this.connector.getConnection().patchObjectCoalesced(
+						"/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, jsonModify);
+				for (Attribute attr : replaceAttributes) {
+					changed.add(AttributeDeltaBuilder.build(attr.getName(), attr.getValue() != null ? attr.getValue() : Collections.emptyList()));
+				}
+			}
+		}
+
+		if (licenseDelta != null && updateLicenses(uid, licenseDelta)) {
+			changed.add(licenseDelta);
+		}
+
+		return changed;
+	}
+
+	/**
+	 * @return The attributes whose values differ from those of the user, with the values they should have
+	 */
+	private Set<Attribute> diffProperties(Uid uid, List<AttributeDelta> deltas) {
+		Set<String> names = new HashSet<>();
+		for (AttributeDelta delta : deltas) {
+			names.add(delta.getName());
+		}
+		JSONObject current = this.connector.getConnection().getRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION
+				+ "&$select=" + Office365Utils.encodeQueryValue(getSelect(names)));
+
+		Set<Attribute> replaceAttributes = new HashSet<>();
+		for (AttributeDelta delta : deltas) {
+			String attrName = delta.getName();
+			String property = SELECTED_PROPERTIES.containsKey(attrName) ? SELECTED_PROPERTIES.get(attrName) : attrName;
+			if (property == null || current == null) {
+				// Not readable, e.g. the password, so always sent
+				replaceAttributes.add(toReplaceAttribute(delta, Collections.emptyList()));
+				continue;
+			}
+
+			List<Object> currentValues = getValues(current, property);
+			Attribute replace = toReplaceAttribute(delta, currentValues);
+			List<Object> values = replace.getValue() != null ? replace.getValue() : Collections.emptyList();
+			if (attrName.equals(Office365Connector.IMMUTABLEID_ATTR) && !values.isEmpty()) {
+				// Stored encoded
+				values = Collections.<Object>singletonList(this.connector.getConnection().encodedUUID(values.get(0).toString()));
+			}
+
+			if (!sameValues(currentValues, values)) {
+				log.info("Attribute {0} changes from {1} to {2}", attrName, currentValues, values);
+				replaceAttributes.add(replace);
+			}
+		}
+		return replaceAttributes;
+	}
+
+	/**
+	 * @return The attribute replacing all values, those to add or remove applied to the current ones
+	 */
+	private static Attribute toReplaceAttribute(AttributeDelta delta, List<Object> currentValues) {
+		if (delta.getValuesToReplace() != null) {
+			return AttributeBuilder.build(delta.getName(), delta.getValuesToReplace());
+		}
+		Set<Object> values = new LinkedHashSet<>(currentValues);
+		if (delta.getValuesToAdd() != null) {
+			values.addAll(delta.getValuesToAdd());
+		}
+		if (delta.getValuesToRemove() != null) {
+			values.removeAll(delta.getValuesToRemove());
+		}
+		return AttributeBuilder.build(delta.getName(), values);
+	}
+
+	private static List<Object> getValues(JSONObject user, String property) {
+		Object value = user.opt(property);
+		List<Object> values = new ArrayList<>();
+		if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			for (int i = 0; i < array.length(); i++) {
+				values.add(array.opt(i));
+			}
+		} else if (value != null && value != JSONObject.NULL) {
+			values.add(value);
+		}
+		return values;
+	}
+
+	/**
+	 * Converts a value to the type the schema gives its attribute, e.g. accountEnabled
+	 * sent as the string "true"
+	 *
+	 * @param type Type of the attribute in the schema, null if it is not in the schema
+	 * @return The converted value, or the value as it is if there is no conversion
+	 */
+	static Object toSchemaType(Class<?> type, Object value) {
+		if (value == null || type == null || type.isInstance(value)) {
+			return value;
+		} else if (Boolean.class.equals(type)) {
+			return Boolean.valueOf(value.toString());
+		} else if (String.class.equals(type)) {
+			return value.toString();
+		}
+		return value;
+	}
+
+	/**
+	 * Compares values regardless of order and of their Java type, e.g. a Boolean and its JSON form
+	 */
+	static boolean sameValues(List<Object> current, List<Object> requested) {
+		Set<String> a = new HashSet<>();
+		for (Object value : current) {
+			a.add(String.valueOf(value));
+		}
+		Set<String> b = new HashSet<>();
+		for (Object value : requested) {
+			if (value != null) {
+				b.add(String.valueOf(value));
+			}
+		}
+		return a.equals(b);
+	}
 
+	/**
+	 * @return true if the licenses of the user changed
+	 */
+	private boolean updateLicenses(Uid uid, AttributeDelta delta) {
+		Office365RetryPolicy.Budget budget = this.connector.getConnection().newRetryBudget();
+		List<String> toAssign = new ArrayList<>();
+		List<String> toRevoke = new ArrayList<>();
+		if (delta.getValuesToReplace() != null) {
+			toAssign.addAll(toStrings(delta.getValuesToReplace()));
+		} else {
+			if (delta.getValuesToAdd() != null) {
+				toAssign.addAll(toStrings(delta.getValuesToAdd()));
+			}
+			if (delta.getValuesToRemove() != null) {
+				toRevoke.addAll(toStrings(delta.getValuesToRemove()));
+			}
+		}
+
+		JSONObject assignRequest;
 		try {
-			this.connector.getConnection().patchObject(
-					"/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, jsonModify);
-		} catch (ConnectorException ce) {
-			log.error(ce, "Error modifying user {0}", uid.getUidValue());
+			JSONArray assigned = getAssignedLicenses(uid, budget);
+			Set<String> skusToRevoke = new LinkedHashSet<>();
+			if (delta.getValuesToReplace() != null) {
+				// Everything not in the new values goes
+				for (int i = 0; i < assigned.length(); i++) {
+					skusToRevoke.add(assigned.getJSONObject(i).getString("skuId"));
+				}
+			}
+			for (JSONObject license : parseLicenses(toRevoke)) {
+				skusToRevoke.add(license.getString("skuId"));
+			}
+			assignRequest = Office365LicenseDiff.diff(assigned, parseLicenses(toAssign), skusToRevoke);
+		} catch (Exception e) {
+			log.error(e, "Error reading existing license(s).");
+			throw new ConnectorException("Error reading existing license(s). ", e);
 		}
 
-		return uid;
+		if (assignRequest == null) {
+			log.info("User {0} already has the license(s) as requested", uid.getUidValue());
+			return false;
+		}
+		try {
+			this.connector.getConnection().licenseAssignmentRequest(uid, assignRequest, budget);
+		} catch (Exception e) {
+			log.error(e, "Error assigning new license(s).");
+			throw new ConnectorException("Error assigning new license(s). ", e);
+		}
+		return true;
+	}
+
+	private static List<String> toStrings(List<Object> values) {
+		return values.stream()
+				.map(object -> Objects.toString(object, null))
+				.collect(Collectors.toList());
 	}
 
 	public void deleteUser(final Uid uid) {
@@ -301,6 +673,7 @@ public class Office365UserOps {
 
 		log.ok("UID of {0} is present", uid.getUidValue());
 
+		this.connector.getConnection().getUserCache().invalidate(uid.getUidValue());
 		boolean b = this.connector.getConnection().deleteRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION);
 
 		if (b) {
@@ -310,34 +683,137 @@ public class Office365UserOps {
 		}
 	}
 
-	public void queryUser(String query, ResultsHandler resultsHandler, OperationOptions options) {
+	public void queryUser(Office365Filter query, ResultsHandler resultsHandler, OperationOptions options) {
 		log.info("queryUser");
 
+		final Set<String> attributesToGet = getAttributesToGet(options);
+		String select = getSelect(attributesToGet);
+		String parameters = "?api-version=" + Office365Connection.API_VERSION;
+		if (select != null) {
+			parameters += "&$select=" + Office365Utils.encodeQueryValue(select);
+		}
+
+		final Office365UserCache cache = this.connector.getConnection().getUserCache();
+		Office365Connection.ObjectHandler handler = obj -> {
+			cache.putUser(obj);
+			ConnectorObject co = makeConnectorObject(obj, attributesToGet);
+			if (co != null) {
+				return resultsHandler.handle(co);
+			}
+			return true;
+		};
+
+		// One retry budget for every page, and every slice, of the search
+		Office365RetryPolicy.Budget budget = this.connector.getConnection().newRetryBudget();
 		if (query == null) {
-			// retrieve all
+			// retrieve all, page by page
 			log.info("Fetching All Users from Office 365");
-			JSONArray allObj;
-			try {
-                allObj = this.connector.getConnection().getRequest("/users?api-version=" + Office365Connection.API_VERSION).getJSONArray("value");
-				for (int i = 0; i < allObj.length(); i++) {
-					ConnectorObject co = makeConnectorObject((JSONObject) allObj.get(i));
-					if (co != null) {
-						resultsHandler.handle(co);
-					}
-				}
-			} catch (JSONException ex) {
-				Logger.getLogger(Office365UserOps.class.getName()).log(Level.SEVERE, null, ex);
+			String path = "/users" + parameters;
+			int parallelism = this.connector.getConfiguration().getScanParallelism();
+			if (parallelism > 1) {
+				new Office365PartitionedScan(this.connector.getConnection(), this.connector.getConfiguration().getPageSize(), parallelism)
+						.scan(path, budget, handler);
+			} else {
+				this.connector.getConnection().getPagedRequest(path, this.connector.getConfiguration().getPageSize(), budget, handler);
 			}
-
-		} else {
-			log.info("Fetching Office 365 user {0}", query);
-            JSONObject obj = this.connector.getConnection().getRequest("/users/" + query + "/?api-version=" + Office365Connection.API_VERSION);
-			ConnectorObject co = makeConnectorObject(obj);
+		} else if (query.getObjectId() != null) {
+			log.info("Fetching Office 365 user {0}", query.getObjectId());
+            JSONObject obj = this.connector.getConnection().getRequest("/users/" + query.getObjectId() + "/" + parameters, budget);
+			cache.putUser(obj);
+			ConnectorObject co = makeConnectorObject(obj, attributesToGet);
 
 			if (co != null) {
 				resultsHandler.handle(co);
 			}
+		} else {
+			log.info("Fetching Office 365 users matching {0}", query);
+			this.connector.getConnection().getPagedRequest("/users" + parameters
+					+ "&$filter=" + Office365Utils.encodeQueryValue(query.toODataFilter()),
+					this.connector.getConfiguration().getPageSize(), budget, handler);
+		}
+	}
+
+	/**
+	 * @return The attributes requested, null if the default attributes are
+	 */
+	static Set<String> getAttributesToGet(OperationOptions options) {
+		if (options == null || options.getAttributesToGet() == null) {
+			return null;
+		}
+		return new HashSet<>(Arrays.asList(options.getAttributesToGet()));
+	}
+
+	/**
+	 * @return The user properties to $select for the attributes, null to read them all
+	 */
+	static String getSelect(Set<String> attributesToGet) {
+		if (attributesToGet == null) {
+			return null;
+		}
+
+		Set<String> properties = new LinkedHashSet<>(Arrays.asList(REQUIRED_PROPERTIES));
+		for (String attribute : attributesToGet) {
+			String property = SELECTED_PROPERTIES.containsKey(attribute) ? SELECTED_PROPERTIES.get(attribute) : attribute;
+			if (property != null) {
+				properties.add(property);
+			}
+		}
+		return String.join(",", properties);
+	}
+
+	/**
+	 * Emits the users changed since the token, deletions included
+	 *
+	 * @param token Token of a previous sync, null to start with every user
+	 */
+	public void syncUsers(SyncToken token, final SyncResultsHandler handler, OperationOptions options) {
+		String deltaToken = token != null && token.getValue() != null ? token.getValue().toString() : INITIAL_DELTA_TOKEN;
+		log.info("syncUsers from token {0}", deltaToken);
+		final Set<String> attributesToGet = getAttributesToGet(options);
+
+		String latestToken = this.connector.getConnection().getDeltaRequest(DELTA_PATH, deltaToken, false, (obj, pageToken) -> {
+			SyncDelta delta = makeSyncDelta(obj, new SyncToken(pageToken), attributesToGet);
+			return delta == null || handler.handle(delta);
+		});
+
+		if (latestToken != null) {
+			log.info("Sync complete, latest token {0}", latestToken);
+			if (handler instanceof SyncTokenResultsHandler) {
+				((SyncTokenResultsHandler) handler).handleResult(new SyncToken(latestToken));
+			}
+		}
+	}
+
+	public SyncToken getLatestSyncToken() {
+		String latestToken = this.connector.getConnection().getDeltaRequest(DELTA_PATH, INITIAL_DELTA_TOKEN, true, (obj, pageToken) -> true);
+		log.info("Latest sync token is {0}", latestToken);
+		return new SyncToken(latestToken);
+	}
+
+	private SyncDelta makeSyncDelta(JSONObject obj, SyncToken token, Set<String> attributesToGet) throws JSONException {
+		String objectType = obj.optString("objectType", "User");
+		if (!"User".equals(objectType)) {
+			log.info("Ignoring changed {0} {1}", objectType, obj.optString("objectId"));
+			return null;
+		}
+
+		SyncDeltaBuilder builder = new SyncDeltaBuilder();
+		builder.setToken(token);
+		builder.setObjectClass(ObjectClass.ACCOUNT);
+
+		if (obj.optBoolean("aad.isDeleted", false)) {
+			log.info("User {0} was deleted", obj.getString("objectId"));
+			builder.setDeltaType(SyncDeltaType.DELETE);
+			builder.setUid(new Uid(obj.getString("objectId")));
+		} else {
+			ConnectorObject co = makeConnectorObject(obj, attributesToGet);
+			if (co == null) {
+				return null;
+			}
+			builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+			builder.setObject(co);
 		}
+		return builder.build();
 	}
 
 	/**
@@ -436,54 +912,150 @@ public class Office365UserOps {
 		}
 		
 		log.info("Assigning licenses {0} to user {1}", licenses, uid.getUidValue());
-		log.ok("Query user for existing license(s) to be removed prior to set new license.");
-		ArrayList<String> licenses2remove = new ArrayList<>();
-		ArrayList<JSONObject> licenses2assign = new ArrayList<>();
+		Office365RetryPolicy.Budget budget = this.connector.getConnection().newRetryBudget();
+		JSONObject assignRequest;
 		try {
-			JSONObject myUser = this.connector.getConnection().getRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION);
-			log.info("User Information {0}", myUser);
-			JSONArray userAssignedLicenses = myUser.getJSONArray("assignedLicenses");
-			log.info("User Assigned Licenses {0}", userAssignedLicenses);
-			
-			for(String license:licenses) {
-				log.info("Checking current license assignments to remove it prior to add the new value: {0}", license);
-				JSONObject parsedLicense = convertLicenseToOfficeFormat(license);
-				licenses2assign.add(parsedLicense);
-				for (int i = 0; i < userAssignedLicenses.length(); i++) {
-					String assignedLicenseSku = userAssignedLicenses.getJSONObject(i).getString("skuId"); 
-					if (assignedLicenseSku.equals(parsedLicense.getString("skuId")) ) {
-						log.info("User {0} already has an assignment to license {1}. It should be removed before assigning the new one", uid.getUidValue(), license);
-						licenses2remove.add(assignedLicenseSku);
-					}
-				}				
-			}
-			
-			if(licenses2remove.size() > 0) {
-				JSONObject removeRequest = new JSONObject();
-				removeRequest.put("addLicenses", JSONObject.NULL);
-				removeRequest.put("removeLicenses", licenses2remove);
-				log.info("JSON request to remove licenses {0}", removeRequest);
-				this.connector.getConnection().licenseAssignmentRequest(uid, removeRequest);
-			}
+			assignRequest = buildAssignRequest(uid, getAssignedLicenses(uid, budget), parseLicenses(licenses));
 		} 
 		catch (Exception e) {
-			log.error(e, "Error removing existing license(s).");
-			throw new ConnectorException("Error removing existing license(s). ", e);
+			log.error(e, "Error reading existing license(s).");
+			throw new ConnectorException("Error reading existing license(s). ", e);
 		}
 
-		log.ok("Now add the new licenses");
+		if (assignRequest == null) {
+			return;
+		}
 		try {
-			JSONObject assignRequest = new JSONObject();
-			assignRequest.put("addLicenses", licenses2assign);
-			assignRequest.put("removeLicenses", JSONObject.NULL);
-			log.info("JSON request to assign licenses {0}", assignRequest);
-			this.connector.getConnection().licenseAssignmentRequest(uid, assignRequest);
+			this.connector.getConnection().licenseAssignmentRequest(uid, assignRequest, budget);
 		} 
 		catch (Exception e) {
 			log.error(e, "Error assigning new license(s).");
 			throw new ConnectorException("Error assigning new license(s). ", e);
 		}
 	}
+
+	/**
+	 * Assigns licenses to many users, with at most bulkParallelism users in flight
+	 *
+	 * @param assignments The licenses to assign to each user
+	 * @param listener Told after each user, may be null
+	 * @return The users assigned their licenses and the error of those which weren't
+	 * @throws ConnectorException before assigning anything if a license is unknown
+	 *         or the tenancy hasn't enough units left
+	 */
+	public Office365BulkLicenseAssignment.Result assignLicenses(Map<Uid, List<String>> assignments,
+			Office365BulkLicenseAssignment.ProgressListener listener) {
+		if (assignments == null) {
+			log.error("No assignments specified on assignLicenses");
+			throw new IllegalArgumentException("No assignments specified for assignLicenses");
+		}
+
+		return new Office365BulkLicenseAssignment(this, this.connector.getConnection(),
+				this.connector.getConfiguration().getBulkParallelism()).assign(assignments, listener);
+	}
+
+	/**
+	 * Non blocking variant of {@link #assignLicenses(Uid, List)}
+	 */
+	public CompletableFuture<Void> assignLicensesAsync(Uid uid, List<String> licenses) {
+
+		if (uid == null) {
+			log.error("No UID specified on assignLicensesAsync");
+			throw new IllegalArgumentException("No UID specified for assignLicensesAsync");
+		}
+
+		log.info("Assigning licenses {0} to user {1}", licenses, uid.getUidValue());
+		return assignParsedLicensesAsync(uid, parseLicenses(licenses), false);
+	}
+
+	/**
+	 * @param batched Whether to send the assignLicense request through $batch
+	 */
+	CompletableFuture<Void> assignParsedLicensesAsync(Uid uid, List<JSONObject> licenses2assign, boolean batched) {
+		final Office365Connection connection = this.connector.getConnection();
+		final Office365RetryPolicy.Budget budget = connection.newRetryBudget();
+
+		return getAssignedLicensesAsync(uid, budget)
+				.thenCompose(assignedLicenses -> {
+					JSONObject assignRequest;
+					try {
+						assignRequest = buildAssignRequest(uid, assignedLicenses, licenses2assign);
+					} catch (JSONException je) {
+						log.error(je, "Error reading existing license(s).");
+						throw new ConnectorException("Error reading existing license(s). ", je);
+					}
+					if (assignRequest == null) {
+						return CompletableFuture.<Void>completedFuture(null);
+					}
+					return batched ? connection.licenseAssignmentRequestBatched(uid, assignRequest)
+							: connection.licenseAssignmentRequestAsync(uid, assignRequest, budget);
+				});
+	}
+
+	/**
+	 * @return The licenses currently assigned to the user, read from the Graph API unless recently seen
+	 */
+	private JSONArray getAssignedLicenses(Uid uid, Office365RetryPolicy.Budget budget) throws JSONException {
+		Office365UserCache cache = this.connector.getConnection().getUserCache();
+		JSONArray assignedLicenses = cache.getAssignedLicenses(uid.getUidValue());
+		if (assignedLicenses != null) {
+			log.info("Using the cached licenses of user {0}", uid.getUidValue());
+			return assignedLicenses;
+		}
+
+		JSONObject myUser = this.connector.getConnection().getRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, budget);
+		log.info("User Information {0}", myUser);
+		cache.putUser(myUser);
+		return myUser.getJSONArray("assignedLicenses");
+	}
+
+	CompletableFuture<JSONArray> getAssignedLicensesAsync(Uid uid, Office365RetryPolicy.Budget budget) {
+		Office365UserCache cache = this.connector.getConnection().getUserCache();
+		JSONArray assignedLicenses = cache.getAssignedLicenses(uid.getUidValue());
+		if (assignedLicenses != null) {
+			log.info("Using the cached licenses of user {0}", uid.getUidValue());
+			return CompletableFuture.completedFuture(assignedLicenses);
+		}
+
+		return this.connector.getConnection().getRequestAsync("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, budget)
+				.thenApply(myUser -> {
+					log.info("User Information {0}", myUser);
+					cache.putUser(myUser);
+					try {
+						return myUser.getJSONArray("assignedLicenses");
+					} catch (JSONException je) {
+						log.error(je, "Error reading the licenses of user {0}", uid.getUidValue());
+						throw new ConnectorException("Error reading the licenses of user " + uid.getUidValue(), je);
+					}
+				});
+	}
+
+	private List<JSONObject> parseLicenses(List<String> licenses) {
+		List<JSONObject> parsed = new ArrayList<>();
+		try {
+			for (String license : licenses) {
+				parsed.add(convertLicenseToOfficeFormat(license));
+			}
+		} catch (JSONException je) {
+			log.error(je, "Error parsing license(s) {0}", licenses);
+			throw new ConnectorException("Error parsing license(s). ", je);
+		}
+		return parsed;
+	}
+
+	/**
+	 * @return The single request giving the user the licenses, null if it already has them as wanted
+	 */
+	private JSONObject buildAssignRequest(Uid uid, JSONArray userAssignedLicenses, List<JSONObject> licenses2assign) throws JSONException {
+		log.info("User Assigned Licenses {0}", userAssignedLicenses);
+		JSONObject assignRequest = Office365LicenseDiff.diff(userAssignedLicenses, licenses2assign, Collections.<String>emptyList());
+		if (assignRequest == null) {
+			log.info("User {0} already has the license(s) as requested", uid.getUidValue());
+		} else {
+			log.info("JSON request to assign licenses {0}", assignRequest);
+		}
+		return assignRequest;
+	}
 	
 	public void revokeLicenses(Uid uid, List<String> licenses) {
 		
@@ -515,7 +1087,10 @@ public class Office365UserOps {
 		}
 	}
 	
-	private ConnectorObject makeConnectorObject(JSONObject jsonObject) {
+	/**
+	 * @param attributesToGet The attributes to return, null for the default ones
+	 */
+	private ConnectorObject makeConnectorObject(JSONObject jsonObject, Set<String> attributesToGet) {
 		log.info("makeConnectorObject");
 
 		if (jsonObject == null) {
@@ -543,6 +1118,9 @@ public class Office365UserOps {
 					"streetAddress", "surname", "telephoneNumber", "usageLocation" };
 
 			for (String a : attrs) {
+				if (attributesToGet != null && !attributesToGet.contains(a)) {
+					continue;
+				}
 				if (jsonObject.has(a)) {
 					Object value = jsonObject.get(a);
 					// log.info("Retreieved attribute {0} with value {1}", a, value);
@@ -564,50 +1142,23 @@ public class Office365UserOps {
 				}
 			}
 			
-			if(jsonObject.has("assignedLicenses")) {
+			boolean licensesRequested = attributesToGet == null || attributesToGet.contains(Office365Connector.LICENSE_ATTR);
+			if(licensesRequested && jsonObject.has("assignedLicenses")) {
 				log.info("Reading user licenses");
 				List<String> userLicenses = new ArrayList<>();
 				JSONArray assignedLicenses = jsonObject.getJSONArray("assignedLicenses");
 				log.info("User has {0} licenses assigned", assignedLicenses.length());
+				Office365LicenseDecoder decoder = this.connector.getConnection().getLicenseCatalog()
+						.getDecoder(this.connector.getConfiguration().getIgnoredPlanNames());
 				for(int i=0; i < assignedLicenses.length(); i++) {
 					JSONObject licenseJson = assignedLicenses.getJSONObject(i);
-					log.info("Evaluating license {0}", licenseJson);
-					Office365License license = this.connector.getConnection().getLicensePlanBySku(licenseJson.getString("skuId"));
-					
-					JSONArray disabledPlans = licenseJson.getJSONArray("disabledPlans");
-					log.info("User has {0} disabled plans on license {1}", disabledPlans.length(), license.getSkuID());
-					
-					if(disabledPlans.length() == 0) {
-						log.info("Adding license {0} without disabled plans", license.getSkuPartNumber());
-						userLicenses.add( license.getSkuPartNumber() );
-					}
-					else {
-						log.info("Converting disabled plans to enabled plans for license {0}", license.getSkuPartNumber());
-						List<String> disabledPlansStrings = new ArrayList<>();
-						for(int d=0; d < disabledPlans.length(); d++) {
-							disabledPlansStrings.add( disabledPlans.getString(d));
-						}
-						List<String> activePlans = new ArrayList<>();
-						activePlans.add(license.getSkuPartNumber());
-						List<Office365ServicePlan> licensePlans = license.getServicePlans();
-						log.info("License plans: {0}", licensePlans);
-						log.info("Disabled plans: {0}", disabledPlansStrings);
-						
-						String ignoredPlans = this.connector.getConfiguration().getIgnoredPlanNames();
-						List<String> ignoredPlansList = Arrays.asList( ignoredPlans.split(",") ); 
-						
-						for(Office365ServicePlan plan:licensePlans) {
-							if(ignoredPlansList.contains(plan.getServicePlanName())) {
-								log.info("User plan {0} is ignored by configuration. Skiping it from user assignments.", plan.getServicePlanName());
-								continue;
-							}
-							if(!disabledPlansStrings.contains(plan.getServicePlanID())) {
-								log.info("Adding enabled plan {0}", plan.getServicePlanName());
-								activePlans.add(plan.getServicePlanName());
-							}
-						}
-						userLicenses.add( StringUtils.join(activePlans, ":") );
+					String skuId = licenseJson.getString("skuId");
+					String license = decoder.decode(skuId, licenseJson.optJSONArray("disabledPlans"));
+					if (license == null) {
+						log.error("User has license {0} which is not subscribed to, skipping it", skuId);
+						continue;
 					}
+					userLicenses.add(license);
 				}
 				log.info("Setting user licenses: {0}", userLicenses);
 				cob.addAttribute(AttributeBuilder.build("licenses", userLicenses));
@@ -4,6 +4,7 @@
 package org.identityconnectors.office365;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 
 import org.identityconnectors.common.Base64;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
@@ -37,6 +38,17 @@ public class Office365Utils {
         }
     }
 
+    /**
+     * Encodes a value, such as a $filter expression, for use in a query string
+     */
+    public static String encodeQueryValue(String value) throws ConnectorException {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException uee) {
+            throw new ConnectorException("unable to encode "+value, uee);
+        }
+    }
+
     private static String[] uidToArray(String uuid) {
         String s = uuid.replace("-", "");
         String[] array = new String[16];
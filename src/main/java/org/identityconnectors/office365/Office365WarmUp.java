@@ -0,0 +1,144 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Loads what the first operations of a new connection need ahead of them: the
+ * token first, then the license catalog and verified domains concurrently.
+ * <p>
+ * Operations started meanwhile join the loads in flight rather than repeating
+ * them. The warm-up gives up after the timeout or when cancelled, in which case
+ * anything not yet loaded is loaded on first use as before.
+ */
+class Office365WarmUp {
+
+    private static final Log log = Log.getLog(Office365WarmUp.class);
+
+    private final Office365Connection connection;
+    private final ScheduledExecutorService scheduler;
+    private final long timeoutMillis;
+    private final ExecutorService executor;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private volatile boolean tokenLoaded = false;
+    private volatile int licenses = -1;
+    private volatile int domains = -1;
+
+    Office365WarmUp(Office365Connection connection, ScheduledExecutorService scheduler, long timeoutMillis) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "office365-warmup-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return Completes once everything is loaded, exceptionally on failure, timeout or cancellation
+     */
+    CompletableFuture<Void> start() {
+        log.info("Warming up connection");
+        CompletableFuture<Void> token = CompletableFuture.runAsync(() -> {
+            this.connection.getToken();
+            this.tokenLoaded = true;
+        }, this.executor);
+
+        CompletableFuture<Void> catalog = token.thenRunAsync(() -> {
+            this.licenses = this.connection.getLicenseCatalog().getLicenses().size();
+        }, this.executor);
+        CompletableFuture<Void> verifiedDomains = token.thenRunAsync(() -> {
+            this.domains = this.connection.loadVerifiedDomains();
+        }, this.executor);
+
+        CompletableFuture.allOf(catalog, verifiedDomains).whenComplete((v, e) -> {
+            if (e != null) {
+                this.done.completeExceptionally(e);
+            } else {
+                this.done.complete(null);
+            }
+        });
+
+        final ScheduledFuture<?> timeout = this.scheduler.schedule(() -> {
+            if (this.done.completeExceptionally(new TimeoutException("Warm-up took longer than " + this.timeoutMillis + " ms"))) {
+                log.error("Warm-up timed out, {0}", getStatus());
+            }
+        }, this.timeoutMillis, TimeUnit.MILLISECONDS);
+
+        this.done.whenComplete((v, e) -> {
+            timeout.cancel(false);
+            this.executor.shutdownNow();
+            if (e == null) {
+                log.ok("Warm-up complete, {0}", getStatus());
+            } else {
+                log.info("Warm-up ended early: {0}", e.getMessage());
+            }
+        });
+        return this.done;
+    }
+
+    /**
+     * Abandons the warm-up, interrupting any request it is waiting on
+     */
+    void cancel() {
+        this.done.cancel(true);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @return What has been loaded so far and whether the warm-up finished
+     */
+    String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("token ").append(this.tokenLoaded ? "acquired" : "not acquired");
+        sb.append(", ").append(this.licenses >= 0 ? this.licenses + " license(s)" : "licenses not loaded");
+        sb.append(", ").append(this.domains >= 0 ? this.domains + " verified domain(s)" : "domains not loaded");
+        if (!this.done.isDone()) {
+            sb.append(", in progress");
+        } else if (this.done.isCancelled()) {
+            sb.append(", cancelled");
+        } else if (this.done.isCompletedExceptionally()) {
+            sb.append(", incomplete");
+        }
+        return sb.toString();
+    }
+}
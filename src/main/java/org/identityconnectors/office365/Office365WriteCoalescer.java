@@ -0,0 +1,220 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Merges PATCHes to the same object into a single request, shared by every
+ * connection to a tenancy.
+ * <p>
+ * A pooled connector instance serves one operation at a time, so updates to the
+ * same user can only meet when they come from different instances. The first
+ * PATCH to a path opens a window of windowMillis, any further PATCH to that path
+ * within the window, from any connection, is merged into it, a property set by a
+ * later call replacing the value from an earlier one. When the window closes the
+ * merged body is sent once, through the connection which opened the window, and
+ * every call merged into it is completed with its result or exception. PATCHes to
+ * the same path are sent one after the other, so a later window never overtakes
+ * an earlier one.
+ * <p>
+ * The windows are timed, and the PATCHes handed to the connections, by daemon
+ * threads shared by all tenancies, so no connection's lifetime ends them early.
+ */
+class Office365WriteCoalescer {
+
+    private static final Log log = Log.getLog(Office365WriteCoalescer.class);
+
+    private static final ConcurrentMap<String, Office365WriteCoalescer> coalescers = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("office365-coalescer-timer"));
+    // Creating a PATCH may wait for a token, so the timer only keeps time
+    private static final ExecutorService sender = Executors.newCachedThreadPool(daemonThreads("office365-coalescer-sender"));
+
+    /**
+     * Sends a merged PATCH, a connection's {@link Office365Connection#patchObjectAsync(String, JSONObject)}
+     */
+    interface Sender {
+        CompletableFuture<Boolean> patch(String path, JSONObject body);
+    }
+
+    private final Map<String, Pending> pending = new HashMap<>();        // path -> PATCH waiting for its window to close
+    private final Map<String, CompletableFuture<?>> sent = new HashMap<>(); // path -> last PATCH sent
+
+    Office365WriteCoalescer() {
+    }
+
+    static Office365WriteCoalescer forTenancy(String tenancy) {
+        return coalescers.computeIfAbsent(tenancy.toLowerCase(), t -> new Office365WriteCoalescer());
+    }
+
+    /**
+     * Merges a PATCH into the one pending for its path, opening a new window if there is none
+     *
+     * @param sender Sends the merged PATCH if this call opens the window
+     * @param path Path of the object, as passed to {@link Office365Connection#patchObject(String, JSONObject)}
+     * @param windowMillis How long the window is kept open if this call opens it
+     * @return Completed once the merged PATCH holding the body has been sent
+     */
+    CompletableFuture<Boolean> patch(Sender sender, String path, JSONObject body, long windowMillis) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        synchronized (this) {
+            Pending p = this.pending.get(path);
+            if (p != null) {
+                try {
+                    merge(p.body, body);
+                    p.waiters.add(future);
+                    log.info("Merged PATCH to {0} with {1} earlier one(s)", path, p.waiters.size() - 1);
+                } catch (JSONException je) {
+                    future.completeExceptionally(new ConnectorException("Error merging PATCH to " + path, je));
+                }
+                return future;
+            }
+
+            p = new Pending(sender, body);
+            p.waiters.add(future);
+            this.pending.put(path, p);
+        }
+
+        timer.schedule(() -> Office365WriteCoalescer.sender.execute(() -> flush(path)), windowMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Fails the PATCHes still waiting to be sent through the sender, for use when its connection is disposed
+     */
+    void cancel(Sender sender) {
+        List<Map.Entry<String, Pending>> cancelled = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Pending>> it = this.pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Pending> entry = it.next();
+                if (entry.getValue().sender == sender) {
+                    cancelled.add(entry);
+                    it.remove();
+                }
+            }
+        }
+        for (Map.Entry<String, Pending> entry : cancelled) {
+            fail(entry.getValue().waiters, new ConnectorException("Connection disposed before PATCH to " + entry.getKey() + " was sent"));
+        }
+    }
+
+    private void flush(final String path) {
+        final Pending p;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        CompletableFuture<?> previous;
+        synchronized (this) {
+            p = this.pending.remove(path);
+            if (p == null) {
+                return;
+            }
+            previous = this.sent.put(path, result);
+        }
+
+        if (p.waiters.size() > 1) {
+            log.info("Sending {0} coalesced PATCH(es) to {1} as one", p.waiters.size(), path);
+        }
+
+        CompletableFuture<?> ready = previous != null ? previous.handle((r, e) -> null) : CompletableFuture.completedFuture(null);
+        ready.thenCompose(x -> p.sender.patch(path, p.body)).whenComplete((r, e) -> {
+            synchronized (this) {
+                this.sent.remove(path, result);
+            }
+            if (e != null) {
+                fail(p.waiters, e);
+                result.completeExceptionally(e);
+            } else {
+                for (CompletableFuture<Boolean> waiter : p.waiters) {
+                    waiter.complete(r);
+                }
+                result.complete(r);
+            }
+        });
+    }
+
+    private static void fail(List<CompletableFuture<Boolean>> waiters, Throwable e) {
+        for (CompletableFuture<Boolean> waiter : waiters) {
+            waiter.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Copies every property of from into into, replacing any value already there
+     */
+    static void merge(JSONObject into, JSONObject from) throws JSONException {
+        Iterator<?> keys = from.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            into.put(key, from.get(key));
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static final class Pending {
+        final Sender sender;
+        final JSONObject body = new JSONObject();
+        final List<CompletableFuture<Boolean>> waiters = new ArrayList<>();
+
+        Pending(Sender sender, JSONObject first) {
+            this.sender = sender;
+            try {
+                merge(this.body, first);
+            } catch (JSONException je) {
+                throw new ConnectorException("Error copying PATCH body", je);
+            }
+        }
+    }
+}
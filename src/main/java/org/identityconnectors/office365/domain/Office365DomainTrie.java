@@ -0,0 +1,89 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365.domain;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verified domains of a tenancy keyed on their labels in reverse order, so that
+ * the closest verified ancestor of a name, e.g. contoso.com for
+ * sales.uk.contoso.com, is found in a single pass over its labels.
+ * <p>
+ * The trie is not modified once built, so it can be read concurrently.
+ */
+public final class Office365DomainTrie {
+
+    private final Node root = new Node();
+    private final int size;
+
+    public Office365DomainTrie(Collection<? extends Office365Domain> domains) {
+        for (Office365Domain domain : domains) {
+            Node node = this.root;
+            String[] labels = domain.getName().toLowerCase().split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) {
+                Node child = node.children.get(labels[i]);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(labels[i], child);
+                }
+                node = child;
+            }
+            node.domain = domain;
+        }
+        this.size = domains.size();
+    }
+
+    /**
+     * @return The domain itself if verified, otherwise its closest verified ancestor, null if there is none
+     */
+    public Office365Domain find(String name) {
+        Office365Domain found = null;
+        Node node = this.root;
+        int end = name.length();
+
+        // Walk the labels from the last one without splitting the name
+        while (node != null && end > 0) {
+            int start = name.lastIndexOf('.', end - 1);
+            String label = name.substring(start + 1, end).toLowerCase();
+            node = node.children.get(label);
+            if (node != null && node.domain != null) {
+                found = node.domain;
+            }
+            end = start;
+        }
+
+        return found;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Office365Domain domain = null;
+    }
+}
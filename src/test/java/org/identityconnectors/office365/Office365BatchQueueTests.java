@@ -0,0 +1,194 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the parsing and dispatching of $batch responses by {@link Office365BatchQueue}.
+ */
+public class Office365BatchQueueTests {
+
+    private static final String RESPONSE =
+            "--batchresponse_1\r\n"
+            + "Content-Type: multipart/mixed; boundary=changesetresponse_a\r\n"
+            + "\r\n"
+            + "--changesetresponse_a\r\n"
+            + "Content-Type: application/http\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "HTTP/1.1 201 Created\r\n"
+            + "Location: https://graph.windows.net/contoso.onmicrosoft.com/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/Microsoft.WindowsAzure.ActiveDirectory.User\r\n"
+            + "Content-Type: application/json\r\n"
+            + "\r\n"
+            + "{\"objectId\":\"4e971521-101a-4311-94f4-0917d7218b4e\"}\r\n"
+            + "--changesetresponse_a--\r\n"
+            + "--batchresponse_1\r\n"
+            + "Content-Type: multipart/mixed; boundary=changesetresponse_b\r\n"
+            + "\r\n"
+            + "--changesetresponse_b\r\n"
+            + "Content-Type: application/http\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "HTTP/1.1 204 No Content\r\n"
+            + "\r\n"
+            + "\r\n"
+            + "--changesetresponse_b--\r\n"
+            + "--batchresponse_1\r\n"
+            + "Content-Type: multipart/mixed; boundary=changesetresponse_c\r\n"
+            + "\r\n"
+            + "--changesetresponse_c\r\n"
+            + "Content-Type: application/http\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "HTTP/1.1 400 Bad Request\r\n"
+            + "Content-Type: application/xml\r\n"
+            + "\r\n"
+            + "<error><message>Invalid value</message></error>\r\n"
+            + "--changesetresponse_c--\r\n"
+            + "--batchresponse_1--\r\n";
+
+    @Test
+    public void testGetBoundary() {
+        Assert.assertEquals(Office365BatchQueue.getBoundary("multipart/mixed; boundary=batchresponse_1"), "batchresponse_1");
+        Assert.assertEquals(Office365BatchQueue.getBoundary("multipart/mixed; boundary=\"batchresponse_1\"; charset=utf-8"), "batchresponse_1");
+        Assert.assertNull(Office365BatchQueue.getBoundary("application/json"));
+    }
+
+    @Test
+    public void testParseResponses() throws Exception {
+        List<HttpResponse> responses = Office365BatchQueue.parseResponses(RESPONSE, "batchresponse_1");
+        Assert.assertEquals(responses.size(), 3);
+
+        Assert.assertEquals(responses.get(0).getStatusLine().getStatusCode(), 201);
+        Assert.assertTrue(responses.get(0).getFirstHeader("Location").getValue().contains("/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/"));
+        Assert.assertEquals(EntityUtils.toString(responses.get(0).getEntity()), "{\"objectId\":\"4e971521-101a-4311-94f4-0917d7218b4e\"}");
+
+        Assert.assertEquals(responses.get(1).getStatusLine().getStatusCode(), 204);
+        Assert.assertNull(responses.get(1).getEntity());
+
+        Assert.assertEquals(responses.get(2).getStatusLine().getStatusCode(), 400);
+        Assert.assertEquals(EntityUtils.toString(responses.get(2).getEntity()), "<error><message>Invalid value</message></error>");
+    }
+
+    private static String changeset(String name, String response) {
+        return "--batchresponse_2\r\n"
+                + "Content-Type: multipart/mixed; boundary=" + name + "\r\n"
+                + "\r\n"
+                + "--" + name + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "Content-Transfer-Encoding: binary\r\n"
+                + "\r\n"
+                + response
+                + "--" + name + "--\r\n";
+    }
+
+    @Test
+    public void testDispatchAppliesRetryRules() throws Exception {
+        String body = changeset("changesetresponse_a", "HTTP/1.1 429 Too Many Requests\r\nRetry-After: 0\r\n\r\n\r\n")
+                + changeset("changesetresponse_b", "HTTP/1.1 404 Not Found\r\nContent-Type: application/xml\r\n\r\n<error><message>Not found</message></error>\r\n")
+                + changeset("changesetresponse_c", "HTTP/1.1 204 No Content\r\n\r\n\r\n")
+                + "--batchresponse_2--\r\n";
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 202, "Accepted"));
+        response.addHeader("Content-Type", "multipart/mixed; boundary=batchresponse_2");
+        response.setEntity(new StringEntity(body, "UTF-8"));
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Office365BatchQueue queue = new Office365BatchQueue(null, scheduler, Runnable::run, Office365BatchQueue.MAX_BATCH_SIZE, TimeUnit.HOURS.toMillis(1));
+            AtomicInteger handled = new AtomicInteger();
+            Office365BatchQueue.ResponseHandler<Integer> handler = r -> {
+                handled.incrementAndGet();
+                return r.getStatusLine().getStatusCode();
+            };
+            Office365BatchQueue.Operation<Integer> throttled = new Office365BatchQueue.Operation<>("POST", "/users/a/assignLicense", null, new Office365RetryPolicy(1, 60000).newBudget(), handler);
+            Office365BatchQueue.Operation<Integer> missing = new Office365BatchQueue.Operation<>("POST", "/users/b/assignLicense", null, new Office365RetryPolicy(1, 60000).newBudget(), handler);
+            Office365BatchQueue.Operation<Integer> updated = new Office365BatchQueue.Operation<>("PATCH", "/users/c", null, new Office365RetryPolicy(1, 60000).newBudget(), handler);
+
+            queue.dispatch(Arrays.<Office365BatchQueue.Operation<?>>asList(throttled, missing, updated), response);
+
+            Assert.assertEquals(updated.future.get(), Integer.valueOf(204));
+            Assert.assertEquals(((Office365Exception) cause(missing.future)).getErrorCode(), Integer.valueOf(404));
+            Assert.assertEquals(handled.get(), 1);
+
+            // The throttled operation is queued again once its delay has passed
+            scheduler.submit(() -> { }).get();
+            Assert.assertFalse(throttled.future.isDone());
+            queue.cancel();
+            Assert.assertTrue(cause(throttled.future) instanceof ConnectorException);
+            Assert.assertEquals(handled.get(), 1);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDispatchFailsOnceBudgetIsSpent() throws Exception {
+        String body = changeset("changesetresponse_a", "HTTP/1.1 503 Service Unavailable\r\n\r\n\r\n")
+                + "--batchresponse_2--\r\n";
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 202, "Accepted"));
+        response.addHeader("Content-Type", "multipart/mixed; boundary=batchresponse_2");
+        response.setEntity(new StringEntity(body, "UTF-8"));
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Office365BatchQueue queue = new Office365BatchQueue(null, scheduler, Runnable::run, Office365BatchQueue.MAX_BATCH_SIZE, TimeUnit.HOURS.toMillis(1));
+            Office365BatchQueue.Operation<Integer> operation = new Office365BatchQueue.Operation<>("POST", "/users/a/assignLicense", null, new Office365RetryPolicy(0, 60000).newBudget(),
+                    r -> r.getStatusLine().getStatusCode());
+
+            queue.dispatch(Arrays.<Office365BatchQueue.Operation<?>>asList(operation), response);
+
+            Assert.assertEquals(((Office365Exception) cause(operation.future)).getErrorCode(), Integer.valueOf(503));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static Throwable cause(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        Assert.fail("Expected the operation to fail");
+        return null;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365BulkLicenseAssignment}.
+ */
+public class Office365BulkLicenseAssignmentTests {
+
+    private static final String ENTERPRISEPACK = "6fd2c87f-b296-42f0-b197-1e91e994b900";
+    private static final String HAS_LICENSE = "[{\"disabledPlans\":[],\"skuId\":\"" + ENTERPRISEPACK + "\"}]";
+
+    private static final Uid CACHED = new Uid("cached");
+    private static final Uid LICENSED = new Uid("licensed");
+    private static final Uid UNLICENSED = new Uid("unlicensed");
+
+    /**
+     * Tenancy with ENTERPRISEPACK, the users' licenses held in memory
+     */
+    private static class FakeTenancy implements Office365BulkLicenseAssignment.Tenancy {
+        private final Office365LicenseCatalog catalog;
+        private final Office365UserCache cache = new Office365UserCache(100, 60000);
+        private final Map<String, String> assigned = new HashMap<>(); // objectId -> assignedLicenses
+        private final Set<Uid> failing = new HashSet<>();
+        private final List<Uid> read = Collections.synchronizedList(new ArrayList<Uid>());
+        private final List<Uid> sent = Collections.synchronizedList(new ArrayList<Uid>());
+
+        FakeTenancy(int available) throws JSONException {
+            this.catalog = Office365LicenseCatalog.fromSubscribedSkus(new JSONObject("{\"value\":[{"
+                    + "\"objectId\":\"48a80680-7326-48cd-9935-b556b81d3a4e_" + ENTERPRISEPACK + "\","
+                    + "\"skuId\":\"" + ENTERPRISEPACK + "\",\"skuPartNumber\":\"ENTERPRISEPACK\",\"consumedUnits\":" + (25 - available) + ","
+                    + "\"prepaidUnits\":{\"enabled\":25,\"suspended\":0,\"warning\":0},\"servicePlans\":[]}]}"));
+        }
+
+        @Override
+        public Office365LicenseCatalog getLicenseCatalog() {
+            return this.catalog;
+        }
+
+        @Override
+        public Office365UserCache getUserCache() {
+            return this.cache;
+        }
+
+        @Override
+        public JSONObject parseLicense(String license) throws JSONException {
+            return new JSONObject("{\"disabledPlans\":[],\"skuId\":\"" + ENTERPRISEPACK + "\"}");
+        }
+
+        @Override
+        public CompletableFuture<JSONArray> readAssignedLicenses(Uid uid) {
+            this.read.add(uid);
+            try {
+                String licenses = this.assigned.get(uid.getUidValue());
+                return CompletableFuture.completedFuture(new JSONArray(licenses != null ? licenses : "[]"));
+            } catch (JSONException je) {
+                throw new IllegalStateException(je);
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> sendAssignment(Uid uid, JSONObject request) {
+            this.sent.add(uid);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (this.failing.contains(uid)) {
+                future.completeExceptionally(new ConnectorException("assignLicense failed for " + uid.getUidValue()));
+            } else {
+                future.complete(null);
+            }
+            return future;
+        }
+    }
+
+    private static Map<Uid, List<String>> assignments(Uid... uids) {
+        Map<Uid, List<String>> assignments = new LinkedHashMap<>();
+        for (Uid uid : uids) {
+            assignments.put(uid, Collections.singletonList("ENTERPRISEPACK"));
+        }
+        return assignments;
+    }
+
+    private static FakeTenancy department(int available) throws JSONException {
+        FakeTenancy tenancy = new FakeTenancy(available);
+        tenancy.cache.putAssignedLicenses(CACHED.getUidValue(), new JSONArray(HAS_LICENSE));
+        tenancy.assigned.put(LICENSED.getUidValue(), HAS_LICENSE);
+        return tenancy;
+    }
+
+    @Test
+    public void testOnlyUsersGainingTheSkuNeedUnits() throws Exception {
+        FakeTenancy tenancy = department(1);
+
+        Office365BulkLicenseAssignment.Result result = new Office365BulkLicenseAssignment(tenancy, 2)
+                .assign(assignments(CACHED, LICENSED, UNLICENSED), null);
+
+        // The cached user isn't read again, only the unlicensed user needs a request
+        Assert.assertEquals(new HashSet<>(tenancy.read), new HashSet<>(Arrays.asList(LICENSED, UNLICENSED)));
+        Assert.assertEquals(tenancy.sent, Collections.singletonList(UNLICENSED));
+        Assert.assertEquals(new HashSet<>(result.getSucceeded()), new HashSet<>(Arrays.asList(CACHED, LICENSED, UNLICENSED)));
+        Assert.assertTrue(result.getFailed().isEmpty());
+    }
+
+    @Test
+    public void testAlreadyLicensedNeedsNoUnits() throws Exception {
+        FakeTenancy tenancy = department(0);
+
+        Office365BulkLicenseAssignment.Result result = new Office365BulkLicenseAssignment(tenancy, 2)
+                .assign(assignments(CACHED, LICENSED), null);
+
+        Assert.assertTrue(tenancy.sent.isEmpty());
+        Assert.assertEquals(result.getSucceeded().size(), 2);
+    }
+
+    @Test
+    public void testShortfallFailsBeforeSending() throws Exception {
+        FakeTenancy tenancy = department(0);
+
+        try {
+            new Office365BulkLicenseAssignment(tenancy, 2).assign(assignments(CACHED, LICENSED, UNLICENSED), null);
+            Assert.fail("Expected a shortfall");
+        } catch (ConnectorException ce) {
+            Assert.assertTrue(ce.getMessage().contains("ENTERPRISEPACK (1 needed, 0 available)"), ce.getMessage());
+        }
+        Assert.assertTrue(tenancy.sent.isEmpty());
+    }
+
+    @Test
+    public void testResultsAndProgress() throws Exception {
+        FakeTenancy tenancy = department(5);
+        Uid failing = new Uid("failing");
+        tenancy.failing.add(failing);
+
+        final List<int[]> progress = new ArrayList<>();
+        Office365BulkLicenseAssignment.Result result = new Office365BulkLicenseAssignment(tenancy, 1)
+                .assign(assignments(LICENSED, UNLICENSED, failing), (completed, failed, total) -> progress.add(new int[] { completed, failed, total }));
+
+        Assert.assertEquals(new HashSet<>(result.getSucceeded()), new HashSet<>(Arrays.asList(LICENSED, UNLICENSED)));
+        Assert.assertEquals(result.getFailed().keySet(), Collections.singleton(failing));
+        Assert.assertTrue(result.getFailed().get(failing) instanceof ConnectorException);
+
+        // Once per user, counting up to the total
+        Assert.assertEquals(progress.size(), 3);
+        for (int i = 0; i < progress.size(); i++) {
+            Assert.assertEquals(progress.get(i)[0], i + 1);
+            Assert.assertEquals(progress.get(i)[2], 3);
+        }
+        Assert.assertEquals(progress.get(2)[1], 1);
+    }
+}
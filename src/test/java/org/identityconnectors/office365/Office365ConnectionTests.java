@@ -24,6 +24,8 @@
 package org.identityconnectors.office365;
 
 import org.identityconnectors.common.logging.Log;
+import org.testng.Assert;
+import org.testng.annotations.Test;
 
 /**
  * 
@@ -34,5 +36,18 @@ public class Office365ConnectionTests {
 
 	private static final Log LOGGER = Log.getLog(Office365ConnectorTests.class);
 
-	
+	@Test
+	public void testGetSkipToken() {
+		String nextLink = "directoryObjects/$/Microsoft.WindowsAzure.ActiveDirectory.User?$skiptoken=X'4453707402000100000017'";
+		Assert.assertEquals(Office365Connection.getSkipToken(nextLink), "X'4453707402000100000017'");
+		Assert.assertNull(Office365Connection.getSkipToken(null));
+		Assert.assertNull(Office365Connection.getSkipToken(""));
+	}
+
+	@Test
+	public void testGetDeltaToken() {
+		String nextLink = "https://graph.windows.net/contoso.com/directoryObjects?deltaLink=XARBN7ivjcS6QIhSZDQR3OkT15SO1eeY&api-version=2013-11-08";
+		Assert.assertEquals(Office365Connection.getDeltaToken(nextLink), "XARBN7ivjcS6QIhSZDQR3OkT15SO1eeY");
+		Assert.assertEquals(Office365Connection.getDeltaToken("directoryObjects?api-version=2013-11-08&deltaLink=abc"), "abc");
+	}
 }
@@ -0,0 +1,78 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.List;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.office365.domain.Office365Domain;
+import org.identityconnectors.office365.domain.Office365DomainTrie;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the parsing and lookup of verified domains.
+ */
+public class Office365DomainCacheTests {
+
+    private static final String TENANT_DETAILS = "{\"value\":[{\"verifiedDomains\":["
+            + "{\"capabilities\":\"Email, OfficeCommunicationsOnline\",\"default\":true,\"id\":\"000520000FC9F4E1\",\"initial\":true,\"name\":\"contoso.onmicrosoft.com\",\"type\":\"Managed\"},"
+            + "{\"capabilities\":\"Email\",\"default\":false,\"id\":\"000520000FC9F4E2\",\"initial\":false,\"name\":\"Contoso.com\",\"type\":\"Federated\"},"
+            + "{\"capabilities\":\"Email\",\"default\":false,\"id\":\"000520000FC9F4E3\",\"initial\":false,\"name\":\"uk.contoso.com\",\"type\":\"Managed\"},"
+            + "{\"capabilities\":\"None\",\"default\":false,\"id\":\"000520000FC9F4E4\",\"initial\":false,\"name\":\"fabrikam.com\",\"type\":\"None\"}]}]}";
+
+    @Test
+    public void testParseVerifiedDomains() throws Exception {
+        List<Office365Domain> domains = Office365DomainCache.parseVerifiedDomains(new JSONObject(TENANT_DETAILS));
+
+        Assert.assertEquals(domains.size(), 3);
+        Assert.assertEquals(domains.get(1).getName(), "contoso.com");
+        Assert.assertEquals(domains.get(1).getDomainType(), Office365Domain.DOMAIN_TYPE_FEDERATED);
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testUnknownDomainType() throws Exception {
+        Office365DomainCache.parseVerifiedDomains(new JSONObject(TENANT_DETAILS.replace("\"None\"}", "\"Unknown\"}")));
+    }
+
+    @Test
+    public void testClosestVerifiedAncestor() throws Exception {
+        Office365DomainTrie trie = new Office365DomainTrie(Office365DomainCache.parseVerifiedDomains(new JSONObject(TENANT_DETAILS)));
+
+        Assert.assertEquals(trie.size(), 3);
+        Assert.assertEquals(trie.find("contoso.com").getName(), "contoso.com");
+        Assert.assertEquals(trie.find("CONTOSO.com").getName(), "contoso.com");
+        Assert.assertEquals(trie.find("sales.contoso.com").getName(), "contoso.com");
+        Assert.assertEquals(trie.find("uk.contoso.com").getName(), "uk.contoso.com");
+        Assert.assertEquals(trie.find("sales.uk.contoso.com").getName(), "uk.contoso.com");
+        Assert.assertEquals(trie.find("contoso.onmicrosoft.com").getDomainType(), Office365Domain.DOMAIN_TYPE_MANAGED);
+
+        Assert.assertNull(trie.find("fabrikam.com"));
+        Assert.assertNull(trie.find("notcontoso.com"));
+        Assert.assertNull(trie.find("com"));
+        Assert.assertNull(trie.find("onmicrosoft.com"));
+        Assert.assertNull(trie.find(""));
+    }
+}
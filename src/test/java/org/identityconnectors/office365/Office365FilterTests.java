@@ -0,0 +1,56 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the compilation of {@link Office365Filter} to OData $filter expressions.
+ */
+public class Office365FilterTests {
+
+    @Test
+    public void testComparisons() {
+        Assert.assertEquals(Office365Filter.equalTo("department", "Sales").toODataFilter(), "department eq 'Sales'");
+        Assert.assertEquals(Office365Filter.equalTo("accountEnabled", Boolean.TRUE).toODataFilter(), "accountEnabled eq true");
+        Assert.assertEquals(Office365Filter.startsWith("displayName", "O'Brien").toODataFilter(), "startswith(displayName,'O''Brien')");
+        Assert.assertEquals(Office365Filter.anyEqualTo("proxyAddresses", "SMTP:a@b.com").toODataFilter(), "proxyAddresses/any(v:v eq 'SMTP:a@b.com')");
+    }
+
+    @Test
+    public void testComposition() {
+        Office365Filter filter = Office365Filter.or(
+                Office365Filter.and(Office365Filter.equalTo("city", "Leeds"), Office365Filter.startsWith("surname", "Sm")),
+                Office365Filter.equalTo("country", "UK"));
+        Assert.assertEquals(filter.toODataFilter(), "((city eq 'Leeds') and (startswith(surname,'Sm'))) or (country eq 'UK')");
+        Assert.assertNull(filter.getObjectId());
+    }
+
+    @Test
+    public void testObjectId() {
+        Assert.assertEquals(Office365Filter.equalTo(Office365Filter.OBJECT_ID, "4e971521-101a-4311-94f4-0917d7218b4e").getObjectId(), "4e971521-101a-4311-94f4-0917d7218b4e");
+        Assert.assertNull(Office365Filter.equalTo("userPrincipalName", "a@b.com").getObjectId());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the translation of framework filters by {@link Office365FilterTranslator}.
+ */
+public class Office365FilterTranslatorTests {
+
+    private final Office365FilterTranslator translator = new Office365FilterTranslator(new Office365Connector(), ObjectClass.ACCOUNT);
+
+    @Test
+    public void testNameAndUid() {
+        Office365Filter name = translator.createEqualsExpression(new EqualsFilter(new Name("a@contoso.com")), false);
+        Assert.assertEquals(name.toODataFilter(), "userPrincipalName eq 'a@contoso.com'");
+
+        Office365Filter uid = translator.createEqualsExpression(new EqualsFilter(new Uid("4e971521-101a-4311-94f4-0917d7218b4e")), false);
+        Assert.assertEquals(uid.getObjectId(), "4e971521-101a-4311-94f4-0917d7218b4e");
+    }
+
+    @Test
+    public void testNotFilterable() {
+        Assert.assertNull(translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build(Office365Connector.LICENSE_ATTR, "contoso:ENTERPRISEPACK")), false));
+        Assert.assertNull(translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build("forceChangePasswordNextLogin", Boolean.TRUE)), false));
+        Assert.assertNull(translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build(OperationalAttributes.PASSWORD_NAME, "secret")), false));
+        Assert.assertNull(translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build("notInSchema", "x")), false));
+    }
+
+    @Test
+    public void testMultiValued() {
+        Office365Filter filter = translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build("proxyAddresses", "SMTP:a@contoso.com")), false);
+        Assert.assertEquals(filter.toODataFilter(), "proxyAddresses/any(v:v eq 'SMTP:a@contoso.com')");
+
+        Assert.assertNull(translator.createStartsWithExpression(new StartsWithFilter(AttributeBuilder.build("proxyAddresses", "SMTP:")), false));
+    }
+
+    @Test
+    public void testNegationNotTranslated() {
+        Assert.assertNull(translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build("department", "Sales")), true));
+        Assert.assertNull(translator.createStartsWithExpression(new StartsWithFilter(AttributeBuilder.build("displayName", "Sm")), true));
+    }
+
+    @Test
+    public void testSpecialCharacters() {
+        Office365Filter filter = translator.createEqualsExpression(new EqualsFilter(AttributeBuilder.build("department", "R&D")), false);
+        Assert.assertEquals(filter.toODataFilter(), "department eq 'R&D'");
+
+        filter = translator.createStartsWithExpression(new StartsWithFilter(AttributeBuilder.build("displayName", "*")), false);
+        Assert.assertEquals(filter.toODataFilter(), "startswith(displayName,'*')");
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.StringReader;
+
+import org.json.JSONException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365JsonPageReader} against sample Graph API pages.
+ */
+public class Office365JsonPageReaderTests {
+
+    private static final String PAGE = "{\"odata.metadata\":\"https://graph.windows.net/contoso.onmicrosoft.com/$metadata#directoryObjects/Microsoft.WindowsAzure.ActiveDirectory.User\","
+            + "\"value\":[{\"objectType\":\"User\",\"objectId\":\"1\",\"displayName\":\"A \\\"quoted\\\" name, with [brackets]\",\"otherMails\":[]},"
+            + " {\"objectType\":\"User\",\"objectId\":\"2\",\"assignedLicenses\":[{\"disabledPlans\":[],\"skuId\":\"x\"}],\"accountEnabled\":true} ],"
+            + "\"odata.nextLink\":\"directoryObjects/$/Microsoft.WindowsAzure.ActiveDirectory.User?$skiptoken=X'44537074'\"}";
+
+    @Test
+    public void testReadPage() throws Exception {
+        Office365JsonPageReader reader = new Office365JsonPageReader(new StringReader(PAGE));
+        final int[] handled = new int[1];
+
+        String nextLink = reader.read(obj -> {
+            handled[0]++;
+            return true;
+        });
+
+        Assert.assertEquals(handled[0], 2);
+        Assert.assertEquals(reader.getCount(), 2);
+        Assert.assertFalse(reader.isStopped());
+        Assert.assertEquals(nextLink, "directoryObjects/$/Microsoft.WindowsAzure.ActiveDirectory.User?$skiptoken=X'44537074'");
+    }
+
+    @Test
+    public void testStopReading() throws Exception {
+        Office365JsonPageReader reader = new Office365JsonPageReader(new StringReader(PAGE));
+
+        String nextLink = reader.read(obj -> false);
+
+        Assert.assertEquals(reader.getCount(), 1);
+        Assert.assertTrue(reader.isStopped());
+        Assert.assertNull(nextLink);
+    }
+
+    @Test
+    public void testLastPage() throws Exception {
+        Office365JsonPageReader reader = new Office365JsonPageReader(new StringReader("{\"odata.metadata\":\"x\",\"value\":[]}"));
+
+        Assert.assertNull(reader.read(obj -> true));
+        Assert.assertEquals(reader.getCount(), 0);
+    }
+
+    @Test
+    public void testDeltaPage() throws Exception {
+        Office365JsonPageReader reader = new Office365JsonPageReader(new StringReader(
+                "{\"odata.metadata\":\"x\",\"value\":[{\"objectId\":\"1\",\"aad.isDeleted\":true}],"
+                + "\"aad.deltaLink\":\"directoryObjects?deltaLink=abc&api-version=2013-11-08\"}"));
+
+        Assert.assertNull(reader.read(obj -> true));
+        Assert.assertEquals(reader.getCount(), 1);
+        Assert.assertEquals(reader.getDeltaLink(), "directoryObjects?deltaLink=abc&api-version=2013-11-08");
+
+        reader = new Office365JsonPageReader(new StringReader(
+                "{\"value\":[],\"aad.nextLink\":\"directoryObjects?deltaLink=def&api-version=2013-11-08\"}"));
+        Assert.assertEquals(reader.read(obj -> true), "directoryObjects?deltaLink=def&api-version=2013-11-08");
+        Assert.assertNull(reader.getDeltaLink());
+    }
+
+    @Test(expectedExceptions = JSONException.class)
+    public void testTruncatedPage() throws Exception {
+        new Office365JsonPageReader(new StringReader(PAGE.substring(0, 200))).read(obj -> true);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365LicenseCatalog}.
+ */
+public class Office365LicenseCatalogTests {
+
+    private static final String SUBSCRIBED_SKUS = "{\"value\":[{"
+            + "\"objectId\":\"48a80680-7326-48cd-9935-b556b81d3a4e_6fd2c87f-b296-42f0-b197-1e91e994b900\","
+            + "\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\",\"skuPartNumber\":\"ENTERPRISEPACK\",\"consumedUnits\":3,"
+            + "\"prepaidUnits\":{\"enabled\":25,\"suspended\":0,\"warning\":0},"
+            + "\"servicePlans\":[{\"servicePlanId\":\"efb87545-963c-4e0d-99df-69c6916d9eb0\",\"servicePlanName\":\"EXCHANGE_S_ENTERPRISE\"},"
+            + "{\"servicePlanId\":\"5dbe027f-2339-4123-9542-606e4d348a72\",\"servicePlanName\":\"SHAREPOINTENTERPRISE\"}]}]}";
+
+    @Test
+    public void testLookups() throws Exception {
+        Office365LicenseCatalog catalog = Office365LicenseCatalog.fromSubscribedSkus(new JSONObject(SUBSCRIBED_SKUS));
+
+        Office365License license = catalog.getLicense("ENTERPRISEPACK");
+        Assert.assertNotNull(license);
+        Assert.assertEquals(license.getSkuID(), "6fd2c87f-b296-42f0-b197-1e91e994b900");
+        Assert.assertEquals(license.getServicePlans().size(), 2);
+        Assert.assertEquals(license.getPrepaidUnitsEnabled(), 25);
+        Assert.assertSame(catalog.getLicenseBySku("6fd2c87f-b296-42f0-b197-1e91e994b900"), license);
+        Assert.assertEquals(catalog.getServicePlanId("SHAREPOINTENTERPRISE"), "5dbe027f-2339-4123-9542-606e4d348a72");
+
+        Assert.assertNull(catalog.getLicense("STANDARDPACK"));
+        Assert.assertNull(catalog.getLicenseBySku("00000000-0000-0000-0000-000000000000"));
+        Assert.assertFalse(catalog.isStale(5));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testImmutable() throws Exception {
+        Office365LicenseCatalog.fromSubscribedSkus(new JSONObject(SUBSCRIBED_SKUS)).getLicenses().clear();
+    }
+
+    @Test
+    public void testEmptyIsStale() {
+        Assert.assertTrue(Office365LicenseCatalog.EMPTY.isEmpty());
+        Assert.assertTrue(Office365LicenseCatalog.EMPTY.isStale(Integer.MAX_VALUE));
+        Assert.assertNull(Office365LicenseCatalog.EMPTY.getLicense(null));
+    }
+
+    @Test
+    public void testDecodeAssignedLicenses() throws Exception {
+        Office365LicenseCatalog catalog = Office365LicenseCatalog.fromSubscribedSkus(new JSONObject(SUBSCRIBED_SKUS));
+        Office365LicenseDecoder decoder = catalog.getDecoder(null);
+
+        Assert.assertEquals(decoder.decode("6fd2c87f-b296-42f0-b197-1e91e994b900", new JSONArray()), "ENTERPRISEPACK");
+        Assert.assertEquals(decoder.decode("6fd2c87f-b296-42f0-b197-1e91e994b900",
+                new JSONArray("[\"5dbe027f-2339-4123-9542-606e4d348a72\"]")), "ENTERPRISEPACK:EXCHANGE_S_ENTERPRISE");
+        Assert.assertEquals(decoder.decode("6fd2c87f-b296-42f0-b197-1e91e994b900",
+                new JSONArray("[\"efb87545-963c-4e0d-99df-69c6916d9eb0\", \"5dbe027f-2339-4123-9542-606e4d348a72\"]")), "ENTERPRISEPACK");
+        Assert.assertNull(decoder.decode("00000000-0000-0000-0000-000000000000", new JSONArray()));
+        Assert.assertSame(catalog.getDecoder(""), decoder);
+    }
+
+    @Test
+    public void testDecodeIgnoresPlans() throws Exception {
+        Office365LicenseCatalog catalog = Office365LicenseCatalog.fromSubscribedSkus(new JSONObject(SUBSCRIBED_SKUS));
+        Office365LicenseDecoder decoder = catalog.getDecoder("SHAREPOINTENTERPRISE, YAMMER_ENTERPRISE");
+
+        JSONArray unknownDisabled = new JSONArray("[\"00000000-0000-0000-0000-000000000000\"]");
+        Assert.assertEquals(decoder.decode("6fd2c87f-b296-42f0-b197-1e91e994b900", unknownDisabled), "ENTERPRISEPACK:EXCHANGE_S_ENTERPRISE");
+        Assert.assertEquals(decoder.decode("6fd2c87f-b296-42f0-b197-1e91e994b900", unknownDisabled), "ENTERPRISEPACK:EXCHANGE_S_ENTERPRISE");
+    }
+}
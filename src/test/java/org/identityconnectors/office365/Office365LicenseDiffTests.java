@@ -0,0 +1,80 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365LicenseDiff}.
+ */
+public class Office365LicenseDiffTests {
+
+    private static final String ENTERPRISEPACK = "6fd2c87f-b296-42f0-b197-1e91e994b900";
+    private static final String STANDARDPACK = "314c4481-f395-4525-be8b-2ec4bb1e9d91";
+    private static final String EXCHANGE = "efb87545-963c-4e0d-99df-69c6916d9eb0";
+
+    private static final String ASSIGNED = "[{\"disabledPlans\":[],\"skuId\":\"" + ENTERPRISEPACK + "\"},"
+            + "{\"disabledPlans\":[\"" + EXCHANGE + "\"],\"skuId\":\"" + STANDARDPACK + "\"}]";
+
+    private static JSONObject license(String skuId, String... disabledPlans) throws Exception {
+        JSONObject license = new JSONObject();
+        license.put("skuId", skuId);
+        license.put("disabledPlans", Arrays.asList(disabledPlans));
+        return license;
+    }
+
+    @Test
+    public void testAlreadyAssigned() throws Exception {
+        Assert.assertNull(Office365LicenseDiff.diff(new JSONArray(ASSIGNED),
+                Arrays.asList(license(ENTERPRISEPACK), license(STANDARDPACK, EXCHANGE.toUpperCase())), Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testChangedPlansInOneRequest() throws Exception {
+        JSONObject request = Office365LicenseDiff.diff(new JSONArray(ASSIGNED),
+                Arrays.asList(license(ENTERPRISEPACK), license(STANDARDPACK)), Collections.<String>emptyList());
+
+        JSONArray addLicenses = request.getJSONArray("addLicenses");
+        Assert.assertEquals(addLicenses.length(), 1);
+        Assert.assertEquals(addLicenses.getJSONObject(0).getString("skuId"), STANDARDPACK);
+        Assert.assertEquals(request.get("removeLicenses"), JSONObject.NULL);
+    }
+
+    @Test
+    public void testAddAndRevoke() throws Exception {
+        JSONObject request = Office365LicenseDiff.diff(new JSONArray("[{\"disabledPlans\":[],\"skuId\":\"" + ENTERPRISEPACK + "\"}]"),
+                Arrays.asList(license(STANDARDPACK)), Arrays.asList(ENTERPRISEPACK, STANDARDPACK, "00000000-0000-0000-0000-000000000000"));
+
+        Assert.assertEquals(request.getJSONArray("addLicenses").getJSONObject(0).getString("skuId"), STANDARDPACK);
+        JSONArray removeLicenses = request.getJSONArray("removeLicenses");
+        Assert.assertEquals(removeLicenses.length(), 1);
+        Assert.assertEquals(removeLicenses.getString(0), ENTERPRISEPACK);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the slicing of the tenant by {@link Office365PartitionedScan}.
+ */
+public class Office365PartitionedScanTests {
+
+    @Test
+    public void testSliceFilters() {
+        List<String> filters = Office365PartitionedScan.getSliceFilters();
+
+        // 26 letters, 10 digits and the catch-all
+        Assert.assertEquals(filters.size(), 37);
+        Assert.assertEquals(new HashSet<>(filters).size(), filters.size());
+        Assert.assertEquals(filters.get(0), "startswith(userPrincipalName,'a')");
+        Assert.assertEquals(filters.get(35), "startswith(userPrincipalName,'9')");
+
+        String catchAll = filters.get(36);
+        Assert.assertTrue(catchAll.contains("(startswith(userPrincipalName,'''')) or (startswith(userPrincipalName,'-'))"));
+        Assert.assertTrue(catchAll.contains("startswith(userPrincipalName,'_')"));
+    }
+}
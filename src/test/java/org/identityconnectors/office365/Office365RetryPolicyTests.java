@@ -0,0 +1,80 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.apache.http.message.BasicHeader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365RetryPolicy}.
+ */
+public class Office365RetryPolicyTests {
+
+    @Test
+    public void testTransientStatusCodes() {
+        Assert.assertTrue(Office365RetryPolicy.isTransient(429));
+        Assert.assertTrue(Office365RetryPolicy.isTransient(503));
+        Assert.assertTrue(Office365RetryPolicy.isTransient(504));
+        Assert.assertFalse(Office365RetryPolicy.isTransient(400));
+        Assert.assertFalse(Office365RetryPolicy.isTransient(401));
+        Assert.assertFalse(Office365RetryPolicy.isTransient(404));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        Assert.assertEquals(Office365RetryPolicy.parseRetryAfter(new BasicHeader("Retry-After", "7")), 7000L);
+        Assert.assertEquals(Office365RetryPolicy.parseRetryAfter(new BasicHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")), 0L);
+        Assert.assertEquals(Office365RetryPolicy.parseRetryAfter(new BasicHeader("Retry-After", "soon")), -1L);
+        Assert.assertEquals(Office365RetryPolicy.parseRetryAfter(null), -1L);
+    }
+
+    @Test
+    public void testBackoffIsBounded() {
+        for (int retry = 0; retry < 40; retry++) {
+            long delay = Office365RetryPolicy.backoff(retry);
+            Assert.assertTrue(delay >= Office365RetryPolicy.BASE_DELAY_MILLIS / 2);
+            Assert.assertTrue(delay <= Office365RetryPolicy.MAX_DELAY_MILLIS);
+        }
+    }
+
+    @Test
+    public void testBudgetLimitsRetries() {
+        Office365RetryPolicy.Budget budget = new Office365RetryPolicy(2, 60000).newBudget();
+
+        Assert.assertEquals(budget.nextDelay(new BasicHeader("Retry-After", "1")), 1000L);
+        Assert.assertEquals(budget.nextDelay(new BasicHeader("Retry-After", "1")), 1000L);
+        Assert.assertEquals(budget.nextDelay(new BasicHeader("Retry-After", "1")), -1L);
+        Assert.assertEquals(budget.getRetries(), 2);
+    }
+
+    @Test
+    public void testBudgetLimitsWaiting() {
+        Office365RetryPolicy.Budget budget = new Office365RetryPolicy(10, 5000).newBudget();
+
+        Assert.assertEquals(budget.nextDelay(new BasicHeader("Retry-After", "3")), 3000L);
+        Assert.assertEquals(budget.nextDelay(new BasicHeader("Retry-After", "3")), -1L);
+        Assert.assertEquals(budget.getRetries(), 1);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365Snapshot}.
+ */
+public class Office365SnapshotTests {
+
+    private static final String SUBSCRIBED_SKUS = "{\"value\":[{\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\"}]}";
+    private static final String TENANT_DETAILS = "{\"value\":[{\"verifiedDomains\":[]}]}";
+
+    @Test
+    public void testFileName() {
+        Assert.assertEquals(Office365Snapshot.getFileName("Contoso.onmicrosoft.com"), "office365-contoso.onmicrosoft.com.json");
+        Assert.assertEquals(Office365Snapshot.getFileName("../contoso"), "office365-.._contoso.json");
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path dir = Files.createTempDirectory("office365-snapshot");
+        File file = dir.resolve(Office365Snapshot.getFileName("contoso.com")).toFile();
+        try {
+            Office365Snapshot saved = Office365Snapshot.forTenancy(dir.toString(), "contoso.com");
+            Assert.assertFalse(saved.load());
+            saved.saveSubscribedSkus(new JSONObject(SUBSCRIBED_SKUS));
+            saved.saveTenantDetails(new JSONObject(TENANT_DETAILS));
+            Assert.assertTrue(file.isFile());
+            Assert.assertSame(Office365Snapshot.forTenancy(dir.toString(), "CONTOSO.com"), saved);
+
+            // As read by another process
+            Office365Snapshot loaded = Office365Snapshot.forTenancy(dir.toString(), "other.com");
+            loaded.read(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+            Assert.assertEquals(loaded.getSubscribedSkusSavedAt(), saved.getSubscribedSkusSavedAt());
+            Assert.assertEquals(loaded.getTenantDetailsSavedAt(), saved.getTenantDetailsSavedAt());
+            Assert.assertEquals(loaded.getSubscribedSkus().toString(), saved.getSubscribedSkus().toString());
+            Assert.assertEquals(loaded.getTenantDetails().toString(), TENANT_DETAILS);
+        } finally {
+            file.delete();
+            dir.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testOtherVersionIgnored() throws Exception {
+        Office365Snapshot snapshot = Office365Snapshot.forTenancy(System.getProperty("java.io.tmpdir"), "version.com");
+        snapshot.read("{\"version\":" + (Office365Snapshot.VERSION + 1) + ",\"subscribedSkusSavedAt\":1,\"subscribedSkus\":" + SUBSCRIBED_SKUS + "}");
+        Assert.assertNull(snapshot.getSubscribedSkus());
+        Assert.assertEquals(snapshot.getSubscribedSkusSavedAt(), 0);
+    }
+
+    @Test
+    public void testSavedAtPerResponse() throws Exception {
+        Path dir = Files.createTempDirectory("office365-snapshot");
+        File file = dir.resolve(Office365Snapshot.getFileName("fabrikam.com")).toFile();
+        try {
+            Office365Snapshot snapshot = Office365Snapshot.forTenancy(dir.toString(), "fabrikam.com");
+            snapshot.read("{\"version\":" + Office365Snapshot.VERSION + ",\"subscribedSkusSavedAt\":1,\"subscribedSkus\":" + SUBSCRIBED_SKUS + "}");
+
+            // Saving the domains must not make the licenses look fresh
+            snapshot.saveTenantDetails(new JSONObject(TENANT_DETAILS));
+            Assert.assertEquals(snapshot.getSubscribedSkusSavedAt(), 1);
+            Assert.assertTrue(snapshot.getTenantDetailsSavedAt() > 1);
+        } finally {
+            file.delete();
+            dir.toFile().delete();
+        }
+    }
+}
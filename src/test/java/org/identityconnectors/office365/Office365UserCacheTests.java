@@ -0,0 +1,96 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365UserCache}.
+ */
+public class Office365UserCacheTests {
+
+    private static final String USER = "{\"objectId\":\"4e971521-101a-4311-94f4-0917d7218b4e\",\"assignedLicenses\":["
+            + "{\"disabledPlans\":[],\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\"},"
+            + "{\"disabledPlans\":[\"efb87545-963c-4e0d-99df-69c6916d9eb0\"],\"skuId\":\"314c4481-f395-4525-be8b-2ec4bb1e9d91\"}]}";
+
+    private static final String OBJECT_ID = "4e971521-101a-4311-94f4-0917d7218b4e";
+
+    @Test
+    public void testFilledFromReadUser() throws Exception {
+        Office365UserCache cache = new Office365UserCache(10, 60000);
+        cache.putUser(new JSONObject(USER));
+        cache.putUser(new JSONObject("{\"objectId\":\"without-licenses\"}"));
+
+        Assert.assertEquals(cache.getAssignedLicenses(OBJECT_ID).length(), 2);
+        Assert.assertNull(cache.getAssignedLicenses("without-licenses"));
+
+        cache.invalidate(OBJECT_ID);
+        Assert.assertNull(cache.getAssignedLicenses(OBJECT_ID));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Office365UserCache cache = new Office365UserCache(2, 60000);
+        cache.putAssignedLicenses("a", new JSONArray());
+        cache.putAssignedLicenses("b", new JSONArray());
+        cache.getAssignedLicenses("a");
+        cache.putAssignedLicenses("c", new JSONArray());
+
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertNotNull(cache.getAssignedLicenses("a"));
+        Assert.assertNull(cache.getAssignedLicenses("b"));
+
+        Office365UserCache expired = new Office365UserCache(2, 1);
+        expired.putAssignedLicenses("a", new JSONArray());
+        Thread.sleep(10);
+        Assert.assertNull(expired.getAssignedLicenses("a"));
+
+        Office365UserCache disabled = new Office365UserCache(0, 60000);
+        disabled.putAssignedLicenses("a", new JSONArray());
+        Assert.assertNull(disabled.getAssignedLicenses("a"));
+    }
+
+    @Test
+    public void testApplyAssignment() throws Exception {
+        Office365UserCache cache = new Office365UserCache(10, 60000);
+        cache.putUser(new JSONObject(USER));
+
+        cache.applyAssignment(OBJECT_ID, new JSONObject("{\"addLicenses\":null,\"removeLicenses\":[\"6fd2c87f-b296-42f0-b197-1e91e994b900\"]}"));
+        JSONArray licenses = cache.getAssignedLicenses(OBJECT_ID);
+        Assert.assertEquals(licenses.length(), 1);
+        Assert.assertEquals(licenses.getJSONObject(0).getString("skuId"), "314c4481-f395-4525-be8b-2ec4bb1e9d91");
+
+        cache.applyAssignment(OBJECT_ID, new JSONObject("{\"addLicenses\":[{\"disabledPlans\":[],\"skuId\":\"314c4481-f395-4525-be8b-2ec4bb1e9d91\"}],\"removeLicenses\":null}"));
+        licenses = cache.getAssignedLicenses(OBJECT_ID);
+        Assert.assertEquals(licenses.length(), 1);
+        Assert.assertEquals(licenses.getJSONObject(0).getJSONArray("disabledPlans").length(), 0);
+
+        // Users not cached stay that way
+        cache.applyAssignment("other", new JSONObject("{\"addLicenses\":[],\"removeLicenses\":null}"));
+        Assert.assertNull(cache.getAssignedLicenses("other"));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the projection of attributes onto user properties and the conversion and comparison of their values.
+ */
+public class Office365UserOpsTests {
+
+    @Test
+    public void testSelectDefaultAttributes() {
+        Assert.assertNull(Office365UserOps.getSelect(null));
+    }
+
+    @Test
+    public void testSelect() {
+        Assert.assertEquals(Office365UserOps.getSelect(new HashSet<>(Arrays.asList(Name.NAME, "accountEnabled"))),
+                "objectId,objectType,userPrincipalName,accountEnabled");
+        Assert.assertEquals(Office365UserOps.getSelect(new HashSet<>(Arrays.asList(Office365Connector.LICENSE_ATTR, OperationalAttributes.PASSWORD_NAME))),
+                "objectId,objectType,userPrincipalName,assignedLicenses");
+        Assert.assertEquals(Office365UserOps.getSelect(new HashSet<String>()), "objectId,objectType,userPrincipalName");
+    }
+
+    @Test
+    public void testSameValues() {
+        Assert.assertTrue(Office365UserOps.sameValues(Arrays.<Object>asList(true), Arrays.<Object>asList(Boolean.TRUE)));
+        Assert.assertTrue(Office365UserOps.sameValues(Arrays.<Object>asList("a@contoso.com", "b@contoso.com"),
+                Arrays.<Object>asList("b@contoso.com", "a@contoso.com")));
+        Assert.assertTrue(Office365UserOps.sameValues(Arrays.<Object>asList(), Arrays.<Object>asList((Object) null)));
+        Assert.assertFalse(Office365UserOps.sameValues(Arrays.<Object>asList("Sales"), Arrays.<Object>asList("Marketing")));
+        Assert.assertFalse(Office365UserOps.sameValues(Arrays.<Object>asList("Sales"), Arrays.<Object>asList()));
+    }
+
+    @Test
+    public void testToSchemaType() {
+        Assert.assertEquals(Office365UserOps.toSchemaType(Boolean.class, "true"), Boolean.TRUE);
+        Assert.assertEquals(Office365UserOps.toSchemaType(Boolean.class, Boolean.FALSE), Boolean.FALSE);
+        Assert.assertEquals(Office365UserOps.toSchemaType(String.class, 12345), "12345");
+        Assert.assertEquals(Office365UserOps.toSchemaType(null, 12345), 12345);
+        Assert.assertNull(Office365UserOps.toSchemaType(Boolean.class, null));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the merging of PATCHes by the {@link Office365WriteCoalescer}.
+ */
+public class Office365WriteCoalescerTests {
+
+    @Test
+    public void testLaterValueWins() throws Exception {
+        JSONObject merged = new JSONObject("{\"city\":\"Salford\",\"department\":\"Sales\"}");
+        Office365WriteCoalescer.merge(merged, new JSONObject("{\"city\":\"Manchester\",\"jobTitle\":\"Manager\"}"));
+
+        Assert.assertEquals(merged.getString("city"), "Manchester");
+        Assert.assertEquals(merged.getString("department"), "Sales");
+        Assert.assertEquals(merged.getString("jobTitle"), "Manager");
+    }
+
+    @Test
+    public void testRemovalIsKept() throws Exception {
+        JSONObject merged = new JSONObject("{\"city\":\"Salford\"}");
+        JSONObject removal = new JSONObject();
+        removal.put("city", JSONObject.NULL);
+        Office365WriteCoalescer.merge(merged, removal);
+
+        Assert.assertEquals(merged.get("city"), JSONObject.NULL);
+    }
+
+    @Test
+    public void testConnectionsMergeIntoOnePatch() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        // Two connections to the tenancy, only the one opening the window sends
+        Office365WriteCoalescer.Sender first = (path, body) -> {
+            sent.add("first " + path + " " + body.optString("city") + " " + body.optString("jobTitle"));
+            return CompletableFuture.completedFuture(true);
+        };
+        Office365WriteCoalescer.Sender second = (path, body) -> {
+            sent.add("second " + path);
+            return CompletableFuture.completedFuture(true);
+        };
+
+        Office365WriteCoalescer coalescer = new Office365WriteCoalescer();
+        CompletableFuture<Boolean> a = coalescer.patch(first, "/users/1", new JSONObject("{\"city\":\"Salford\"}"), 200);
+        CompletableFuture<Boolean> b = coalescer.patch(second, "/users/1",
+                new JSONObject("{\"city\":\"Manchester\",\"jobTitle\":\"Manager\"}"), 200);
+
+        Assert.assertTrue(a.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(b.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(sent, Collections.singletonList("first /users/1 Manchester Manager"));
+    }
+
+    @Test
+    public void testFailureReachesEveryCaller() throws Exception {
+        Office365WriteCoalescer.Sender failing = (path, body) -> {
+            CompletableFuture<Boolean> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("throttled"));
+            return f;
+        };
+
+        Office365WriteCoalescer coalescer = new Office365WriteCoalescer();
+        CompletableFuture<Boolean> a = coalescer.patch(failing, "/users/2", new JSONObject("{\"city\":\"Salford\"}"), 50);
+        CompletableFuture<Boolean> b = coalescer.patch(failing, "/users/2", new JSONObject("{\"department\":\"Sales\"}"), 50);
+
+        for (CompletableFuture<Boolean> f : Arrays.asList(a, b)) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expected the PATCH to fail");
+            } catch (ExecutionException ee) {
+                Assert.assertTrue(ee.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+}